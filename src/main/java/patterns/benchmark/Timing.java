@@ -0,0 +1,115 @@
+package patterns.benchmark;
+
+/**
+ * What the benchmark mains next to the pattern demos share: run the same measurements for
+ * a few rounds, so the JIT has settled by the last ones, and print every result the same way.
+ */
+public final class Timing {
+
+    /**
+     * One round of a benchmark.
+     */
+    public interface Round {
+        void run(int round) throws Exception;
+    }
+
+    /**
+     * Something to time.
+     */
+    public interface Measured {
+        /**
+         * @return how many operations were done, which the rates are worked out from
+         */
+        long run() throws Exception;
+    }
+
+    /**
+     * A line about how a long-running load is doing.
+     */
+    public interface Progress {
+        String report();
+    }
+
+    /**
+     * How long a {@link Measured} took and how much it did.
+     */
+    public static final class Result {
+        private final long count;
+        private final long nanos;
+
+        private Result(long count, long nanos){
+            this.count = count;
+            this.nanos = Math.max(nanos, 1);
+        }
+
+        public long count(){
+            return this.count;
+        }
+
+        public long micros(){
+            return this.nanos / 1000;
+        }
+
+        /**
+         * @return e.g. "   12,345,678 levels/sec"
+         */
+        public String perSecond(String unit){
+            return String.format("%,15d %s/sec", (long) (this.count / (this.nanos / 1e9)), unit);
+        }
+
+        /**
+         * @return e.g. "    3.40 ns/call"
+         */
+        public String nanosPer(String unit){
+            return String.format("%8.2f ns/%s", (double) this.nanos / Math.max(this.count, 1), unit);
+        }
+
+        /**
+         * @return e.g. "  1,234 us"
+         */
+        public String elapsed(){
+            return String.format("%,9d us", this.micros());
+        }
+    }
+
+    private Timing(){
+        super();
+    }
+
+    /**
+     * Run the rounds one after another, each under a "Round n" heading.
+     */
+    public static void rounds(int rounds, Round round) throws Exception {
+        for(int i=1;i<=rounds;i++){
+            System.out.println("Round " + i);
+            round.run(i);
+        }
+    }
+
+    public static Result time(Measured body) throws Exception {
+        long start = System.nanoTime();
+        long count = body.run();
+        return new Result(count, System.nanoTime() - start);
+    }
+
+    /**
+     * Let a load run for a number of seconds, printing how it's doing once a second.
+     */
+    public static void watch(long seconds, Progress progress) throws InterruptedException {
+        long start = System.nanoTime();
+        for(long s=1;s<=seconds;s++){
+            long wait = start + s * 1_000_000_000L - System.nanoTime();
+            if(wait > 0){
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            System.out.printf("%3ds: %s%n", s, progress.report());
+        }
+    }
+
+    /**
+     * Print one result of a round, lined up under the others.
+     */
+    public static void print(String label, String result){
+        System.out.printf("  %-26s %s%n", label, result);
+    }
+}
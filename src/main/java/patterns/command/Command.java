@@ -1,24 +1,80 @@
 package patterns.command;
 
+import patterns.benchmark.Timing;
+
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /**
  * Command Pattern Demo.
  *
- * Press: w,a,s,d to move the logo around.
+ * Press: w,a,s,d to move the logo around, z to undo and y to redo.
+ *
+ * Pass a file name as the first argument to journal every command to it,
+ * then use {@link CommandReplay} to play the journal back.
+ *
+ * Set the 'logo' system property to use a different image -- a file path,
+ * a URL, or 'classpath:' followed by a resource name.
  */
 public class Command {
 
-    public static void main(String[] args){
+    private static final int HISTORY_SIZE = 1024;
+    private static final long JOURNAL_FLUSH_MILLIS = 200;
+
+    public static void main(String[] args) throws IOException {
+        CommandHistory history = new CommandHistory(HISTORY_SIZE);
+        MovementInvoker invoker = new MovementInvoker(history);
+        if(args.length > 0){
+            final CommandJournal journal = new CommandJournal(Paths.get(args[0]), JOURNAL_FLUSH_MILLIS);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        System.err.println("Error closing the journal: " + e.getMessage());
+                    }
+                }
+            }));
+            invoker = new JournalingInvoker(journal, history);
+        }
+
         MovementWindow window = new MovementWindow();
-        window.build();
+        window.build(invoker);
     }
 
     /**
@@ -26,11 +82,509 @@ public class Command {
      */
     public static class MovementInvoker {
 
+        private final CommandHistory history;
+
+        MovementInvoker(){
+            this(null);
+        }
+
+        /**
+         * @param history where to keep commands for undo and redo, or null for none
+         */
+        MovementInvoker(CommandHistory history){
+            super();
+            this.history = history;
+        }
+
         void execute(ActionCommand command){
             if(command == null){
-                JOptionPane.showMessageDialog(null, "Up: w\nDown: s\nLeft: a\nRight: d\n", "Commands", JOptionPane.ERROR_MESSAGE);
+                JOptionPane.showMessageDialog(null, "Up: w\nDown: s\nLeft: a\nRight: d\nUndo: z\nRedo: y\n", "Commands", JOptionPane.ERROR_MESSAGE);
             } else {
                 command.execute();
+                if(this.history != null && command instanceof AbstractMoveCommand){
+                    this.history.record((AbstractMoveCommand) command);
+                }
+            }
+        }
+
+        /**
+         * Run the command bound to each key in turn, without any Swing involved.
+         * Keys with nothing bound to them are skipped.
+         *
+         * @return how many commands were run
+         */
+        long executeAll(KeyCommandTable commands, char[] keys, int offset, int length){
+            long count = 0;
+            for(int i=offset;i<offset + length;i++){
+                ActionCommand command = commands.get(keys[i]);
+                if(command != null){
+                    this.execute(command);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return the command that was undone, or null if there was nothing to undo
+         */
+        AbstractMoveCommand undo(){
+            return (this.history == null) ? null : this.history.undo();
+        }
+
+        /**
+         * @return the command that was redone, or null if there was nothing to redo
+         */
+        AbstractMoveCommand redo(){
+            return (this.history == null) ? null : this.history.redo();
+        }
+    }
+
+    /**
+     * An Invoker any number of threads can hand commands to.
+     *
+     * Commands go into a lock-free queue. A single thread takes them off in batches and
+     * runs them through the target Invoker, so the Logo only ever has one writer and no
+     * moves get lost. After each batch the listener is told once -- e.g. to repaint --
+     * instead of once per command.
+     */
+    public static class SingleWriterInvoker extends MovementInvoker {
+
+        private static final int MAX_BATCH = 4096;
+
+        private final MovementInvoker target;
+        private final Runnable afterBatch;
+
+        private final MpscQueue<ActionCommand> queue = new MpscQueue<ActionCommand>();
+        private final Thread writer;
+
+        private volatile boolean running = true;
+        private volatile boolean sleeping;
+
+        /**
+         * @param afterBatch run on the writer thread after each batch of commands
+         */
+        SingleWriterInvoker(MovementInvoker target, Runnable afterBatch){
+            super();
+            this.target = target;
+            this.afterBatch = afterBatch;
+            this.writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "movement-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+
+        /**
+         * Queue the command to be run on the writer thread. Never blocks.
+         */
+        @Override
+        void execute(ActionCommand command){
+            if(command == null){
+                //Let the target show its help on the calling thread.
+                this.target.execute(null);
+                return;
+            }
+            this.queue.offer(command);
+            if(this.sleeping){
+                LockSupport.unpark(this.writer);
+            }
+        }
+
+        /**
+         * Undo on the writer thread. Called from any other thread it's queued, and returns null.
+         */
+        @Override
+        AbstractMoveCommand undo(){
+            if(Thread.currentThread() == this.writer){
+                return this.target.undo();
+            }
+            this.execute(new UndoCommand(this.target));
+            return null;
+        }
+
+        /**
+         * Redo on the writer thread. Called from any other thread it's queued, and returns null.
+         */
+        @Override
+        AbstractMoveCommand redo(){
+            if(Thread.currentThread() == this.writer){
+                return this.target.redo();
+            }
+            this.execute(new RedoCommand(this.target));
+            return null;
+        }
+
+        /**
+         * Stop once everything already queued has been run.
+         */
+        void shutdown() throws InterruptedException {
+            this.running = false;
+            LockSupport.unpark(this.writer);
+            this.writer.join();
+        }
+
+        private void drain(){
+            while(true){
+                int count = 0;
+                ActionCommand command;
+                while(count < MAX_BATCH && (command = this.queue.poll()) != null){
+                    this.target.execute(command);
+                    count++;
+                }
+
+                if(count > 0){
+                    if(this.afterBatch != null){
+                        this.afterBatch.run();
+                    }
+                } else if(! this.running){
+                    return;
+                } else {
+                    //Check again after saying we're asleep, so an offer can't slip by unnoticed.
+                    this.sleeping = true;
+                    if(this.queue.isEmpty() && this.running){
+                        LockSupport.park(this);
+                    }
+                    this.sleeping = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * A lock-free queue for many producers and a single consumer.
+     *
+     * Producers swap themselves in as the tail with one atomic getAndSet and then link
+     * the old tail to the new node. Only the consumer ever touches the head.
+     */
+    static class MpscQueue<E> {
+
+        private final AtomicReference<Node<E>> tail;
+        private Node<E> head;
+
+        MpscQueue(){
+            super();
+            this.head = new Node<E>(null);
+            this.tail = new AtomicReference<Node<E>>(this.head);
+        }
+
+        void offer(E value){
+            Node<E> node = new Node<E>(value);
+            Node<E> previous = this.tail.getAndSet(node);
+            previous.next = node;
+        }
+
+        /**
+         * Consumer only.
+         *
+         * @return the next value, or null if there isn't one yet
+         */
+        E poll(){
+            Node<E> next = this.head.next;
+            if(next == null){
+                return null;
+            }
+            E value = next.value;
+            next.value = null;
+            this.head = next;
+            return value;
+        }
+
+        /**
+         * Consumer only.
+         */
+        boolean isEmpty(){
+            return this.head.next == null && this.tail.get() == this.head;
+        }
+
+        private static class Node<E> {
+            private E value;
+            private volatile Node<E> next;
+
+            Node(E value){
+                this.value = value;
+            }
+        }
+    }
+
+    /**
+     * Looks up the command bound to a key, indexed straight by the char.
+     *
+     * ASCII keys go in a plain array. Anything else goes in a small sorted array that is
+     * binary searched. Either way a lookup doesn't box the char or allocate.
+     */
+    public static class KeyCommandTable {
+
+        private static final int DENSE_SIZE = 128;
+
+        private final ActionCommand[] dense = new ActionCommand[DENSE_SIZE];
+
+        private char[] sparseKeys = new char[0];
+        private ActionCommand[] sparseCommands = new ActionCommand[0];
+
+        void put(char key, ActionCommand command){
+            if(key < DENSE_SIZE){
+                this.dense[key] = command;
+                return;
+            }
+
+            int index = Arrays.binarySearch(this.sparseKeys, key);
+            if(index >= 0){
+                this.sparseCommands[index] = command;
+                return;
+            }
+
+            int insertAt = -index - 1;
+            char[] keys = new char[this.sparseKeys.length + 1];
+            ActionCommand[] commands = new ActionCommand[keys.length];
+            System.arraycopy(this.sparseKeys, 0, keys, 0, insertAt);
+            System.arraycopy(this.sparseCommands, 0, commands, 0, insertAt);
+            keys[insertAt] = key;
+            commands[insertAt] = command;
+            System.arraycopy(this.sparseKeys, insertAt, keys, insertAt + 1, this.sparseKeys.length - insertAt);
+            System.arraycopy(this.sparseCommands, insertAt, commands, insertAt + 1, this.sparseKeys.length - insertAt);
+            this.sparseKeys = keys;
+            this.sparseCommands = commands;
+        }
+
+        /**
+         * @return the command bound to the key, or null if there isn't one
+         */
+        ActionCommand get(char key){
+            if(key < DENSE_SIZE){
+                return this.dense[key];
+            }
+            int index = Arrays.binarySearch(this.sparseKeys, key);
+            return (index >= 0) ? this.sparseCommands[index] : null;
+        }
+
+        /**
+         * Bind w,a,s,d to the move commands for a Logo.
+         */
+        static KeyCommandTable forMoves(Logo logo){
+            KeyCommandTable table = new KeyCommandTable();
+            table.put('a', new MoveLeftCommand(logo));
+            table.put('d', new MoveRightCommand(logo));
+            table.put('w', new MoveUpCommand(logo));
+            table.put('s', new MoveDownCommand(logo));
+            return table;
+        }
+    }
+
+    /**
+     * Measure how many commands per second the Invoker can run, feeding it keys
+     * from a generated stream instead of the keyboard.
+     */
+    public static class CommandThroughput {
+
+        private static final int KEYS = 50000000;
+        private static final int ROUNDS = 5;
+        private static final int PRODUCERS = 4;
+
+        public static void main(String[] args) throws Exception {
+            final char[] keys = new char[KEYS];
+            char[] moves = new char[]{'w', 'a', 's', 'd'};
+            Random random = new Random(42);
+            for(int i=0;i<keys.length;i++){
+                keys[i] = moves[random.nextInt(moves.length)];
+            }
+
+            Logo logo = new Logo(0, 0);
+            final KeyCommandTable commands = KeyCommandTable.forMoves(logo);
+
+            final MovementInvoker plain = new MovementInvoker();
+            final MovementInvoker withHistory = new MovementInvoker(new CommandHistory(HISTORY_SIZE));
+
+            Timing.rounds(ROUNDS, new Timing.Round() {
+                @Override
+                public void run(int round) throws Exception {
+                    time("invoker", plain, commands, keys);
+                    time("invoker with history", withHistory, commands, keys);
+                    timeProducers(PRODUCERS, keys);
+                }
+            });
+            System.out.println("(logo at " + logo.x + ", " + logo.y + ")");
+        }
+
+        /**
+         * Split the keys between several threads all feeding one {@link SingleWriterInvoker},
+         * and check that no moves were lost.
+         */
+        private static void timeProducers(final int producers, final char[] keys) throws Exception {
+            Logo expected = new Logo(0, 0);
+            new MovementInvoker().executeAll(KeyCommandTable.forMoves(expected), keys, 0, keys.length);
+
+            Logo logo = new Logo(0, 0);
+            final KeyCommandTable commands = KeyCommandTable.forMoves(logo);
+            final AtomicLong batches = new AtomicLong();
+            final SingleWriterInvoker invoker = new SingleWriterInvoker(new MovementInvoker(), new Runnable() {
+                @Override
+                public void run() {
+                    batches.incrementAndGet();
+                }
+            });
+
+            Timing.Result result = Timing.time(new Timing.Measured() {
+                @Override
+                public long run() throws InterruptedException {
+                    Thread[] threads = new Thread[producers];
+                    int share = keys.length / producers;
+                    for(int i=0;i<producers;i++){
+                        final int offset = i * share;
+                        final int length = (i == producers - 1) ? keys.length - offset : share;
+                        threads[i] = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                invoker.executeAll(commands, keys, offset, length);
+                            }
+                        });
+                        threads[i].start();
+                    }
+                    for(Thread thread : threads){
+                        thread.join();
+                    }
+                    //Only done once the writer has run everything the producers queued.
+                    invoker.shutdown();
+                    return keys.length;
+                }
+            });
+
+            Timing.print(producers + " producers", String.format("%s, %,d batches%s",
+                    result.perSecond("commands"), batches.get(),
+                    (logo.x == expected.x && logo.y == expected.y) ? "" : " -- MOVES WERE LOST"));
+        }
+
+        private static void time(String label, final MovementInvoker invoker, final KeyCommandTable commands,
+                                 final char[] keys) throws Exception {
+            Timing.print(label, Timing.time(new Timing.Measured() {
+                @Override
+                public long run() {
+                    return invoker.executeAll(commands, keys, 0, keys.length);
+                }
+            }).perSecond("commands"));
+        }
+    }
+
+    /**
+     * The undo/redo history of an Invoker.
+     *
+     * Only the opcodes are kept, in a ring buffer allocated up front, so a long session
+     * costs no more memory than a short one and recording, undo and redo never allocate.
+     * Once the ring is full the oldest commands fall off the end.
+     *
+     * The opcodes are turned back into commands with the last command seen for each one,
+     * so every command in a history has to act on the same Logo.
+     */
+    public static class CommandHistory {
+
+        private final byte[] opcodes;
+        private final AbstractMoveCommand[] commands = new AbstractMoveCommand[AbstractMoveCommand.OPCODE_COUNT];
+
+        private int head;
+        private int undoable;
+        private int redoable;
+
+        CommandHistory(int capacity){
+            super();
+            this.opcodes = new byte[capacity];
+        }
+
+        void record(AbstractMoveCommand command){
+            byte opcode = command.getOpcode();
+            this.commands[opcode] = command;
+
+            this.opcodes[this.index(this.undoable)] = opcode;
+            if(this.undoable == this.opcodes.length){
+                this.head = this.index(1);
+            } else {
+                this.undoable++;
+            }
+            //A new command starts a new branch, so whatever was undone can't be redone.
+            this.redoable = 0;
+        }
+
+        AbstractMoveCommand undo(){
+            if(this.undoable == 0){
+                return null;
+            }
+            this.undoable--;
+            this.redoable++;
+            AbstractMoveCommand command = this.commands[this.opcodes[this.index(this.undoable)]];
+            command.undo();
+            return command;
+        }
+
+        AbstractMoveCommand redo(){
+            if(this.redoable == 0){
+                return null;
+            }
+            AbstractMoveCommand command = this.commands[this.opcodes[this.index(this.undoable)]];
+            this.undoable++;
+            this.redoable--;
+            command.redo();
+            return command;
+        }
+
+        private int index(int i){
+            return (this.head + i) % this.opcodes.length;
+        }
+    }
+
+    /**
+     * An Invoker that also appends each command it runs to a {@link CommandJournal}.
+     */
+    public static class JournalingInvoker extends MovementInvoker {
+
+        private final CommandJournal journal;
+
+        private boolean failed;
+
+        JournalingInvoker(CommandJournal journal, CommandHistory history){
+            super(history);
+            this.journal = journal;
+        }
+
+        @Override
+        void execute(ActionCommand command){
+            super.execute(command);
+            //Undo and redo are journaled on their own below.
+            if(command instanceof AbstractMoveCommand){
+                this.journal(command, false);
+            }
+        }
+
+        @Override
+        AbstractMoveCommand undo(){
+            AbstractMoveCommand command = super.undo();
+            if(command != null){
+                this.journal(command, true);
+            }
+            return command;
+        }
+
+        @Override
+        AbstractMoveCommand redo(){
+            AbstractMoveCommand command = super.redo();
+            if(command != null){
+                this.journal(command, false);
+            }
+            return command;
+        }
+
+        private void journal(ActionCommand command, boolean undo){
+            if(this.failed){
+                return;
+            }
+            try {
+                this.journal.append(command, undo);
+            } catch (IOException e) {
+                //The move has already been made. Carry on without the journal rather than
+                //throwing out of the key handler.
+                System.err.println("Error writing the journal, no longer journaling: " + e);
+                this.failed = true;
             }
         }
     }
@@ -42,28 +596,43 @@ public class Command {
 
         private Logo logo;
 
-        private Map<Character,ActionCommand> commands = new HashMap<Character,ActionCommand>();
+        private KeyCommandTable commands = new KeyCommandTable();
 
         void build() {
-            try {
-                this.logo = new Logo();
-            } catch (MalformedURLException e) {
-                throw new IllegalStateException(e);
-            }
+            this.build(new MovementInvoker());
+        }
+
+        void build(MovementInvoker target) {
+            //Keys are run on the invoker's writer thread, and the window is repainted once
+            //per batch of moves instead of once per key.
+            final SingleWriterInvoker invoker = new SingleWriterInvoker(target, new Runnable() {
+                @Override
+                public void run() {
+                    repaint();
+                }
+            });
 
-            final MovementInvoker invoker = new MovementInvoker();
+            //The image turns up later -- repaint when it does.
+            this.logo = new Logo(ImageSource.parse(System.getProperty("logo", Logo.DEFAULT_IMAGE)),
+                    ImageLoader.shared(), new Runnable() {
+                        @Override
+                        public void run() {
+                            repaint();
+                        }
+                    });
 
             commands.put('a', new MoveLeftCommand(this.logo));
             commands.put('d', new MoveRightCommand(this.logo));
             commands.put('w', new MoveUpCommand(this.logo));
             commands.put('s', new MoveDownCommand(this.logo));
+            commands.put('z', new UndoCommand(invoker));
+            commands.put('y', new RedoCommand(invoker));
 
             this.addKeyListener(new KeyAdapter() {
                 @Override
                 public void keyTyped(KeyEvent e) {
                     ActionCommand command = commands.get(e.getKeyChar());
                     invoker.execute(command);
-                    repaint();
                 }
             });
 
@@ -91,11 +660,449 @@ public class Command {
      */
     public static class Logo extends ImageIcon {
 
+        static final String DEFAULT_IMAGE = "http://www.msse.umn.edu/sites/all/themes/umsec/images/umseclogo.gif";
+
+        private static final int PLACEHOLDER_SIZE = 48;
+
         private int x;
         private int y;
 
-        Logo() throws MalformedURLException {
-            super(new URL("http://www.msse.umn.edu/sites/all/themes/umsec/images/umseclogo.gif"));
+        /**
+         * Show a placeholder straight away and swap the real image in once it's loaded.
+         *
+         * @param onLoaded run on the event thread once the image is in, may be null
+         */
+        Logo(ImageSource source, ImageLoader loader, final Runnable onLoaded) {
+            super(placeholder());
+            loader.load(source).thenAccept(new Consumer<Image>() {
+                @Override
+                public void accept(final Image image) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            setImage(image);
+                            if(onLoaded != null){
+                                onLoaded.run();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * A Logo with no image at all, for running commands without a window.
+         */
+        Logo(int x, int y) {
+            super();
+            this.x = x;
+            this.y = y;
+        }
+
+        private static Image placeholder(){
+            BufferedImage image = new BufferedImage(PLACEHOLDER_SIZE, PLACEHOLDER_SIZE, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = image.createGraphics();
+            try {
+                g.setColor(Color.LIGHT_GRAY);
+                g.fillRect(0, 0, PLACEHOLDER_SIZE, PLACEHOLDER_SIZE);
+                g.setColor(Color.GRAY);
+                g.drawRect(0, 0, PLACEHOLDER_SIZE - 1, PLACEHOLDER_SIZE - 1);
+            } finally {
+                g.dispose();
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Somewhere a Logo's image can be read from.
+     */
+    static abstract class ImageSource {
+
+        /**
+         * @return what the image is cached under
+         */
+        abstract String getKey();
+
+        abstract InputStream open() throws IOException;
+
+        /**
+         * @param location a file path, a URL, or 'classpath:' followed by a resource name
+         */
+        static ImageSource parse(String location){
+            if(location.startsWith("classpath:")){
+                return new ResourceImageSource(location.substring("classpath:".length()));
+            }
+            //A scheme is at least two letters, so a Windows drive like C: is still a file.
+            if(location.matches("^[a-zA-Z][a-zA-Z0-9+.-]+:.*")){
+                try {
+                    return new UrlImageSource(new URL(location));
+                } catch (MalformedURLException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+            return new FileImageSource(Paths.get(location));
+        }
+    }
+
+    static class FileImageSource extends ImageSource {
+        private Path file;
+
+        FileImageSource(Path file){
+            super();
+            this.file = file;
+        }
+
+        @Override
+        String getKey() {
+            return "file:" + this.file.toAbsolutePath();
+        }
+
+        @Override
+        InputStream open() throws IOException {
+            return Files.newInputStream(this.file);
+        }
+    }
+
+    static class ResourceImageSource extends ImageSource {
+        private String resource;
+
+        ResourceImageSource(String resource){
+            super();
+            this.resource = resource.startsWith("/") ? resource.substring(1) : resource;
+        }
+
+        @Override
+        String getKey() {
+            return "classpath:" + this.resource;
+        }
+
+        @Override
+        InputStream open() throws IOException {
+            InputStream in = Command.class.getClassLoader().getResourceAsStream(this.resource);
+            if(in == null){
+                throw new FileNotFoundException("No such resource: " + this.resource);
+            }
+            return in;
+        }
+    }
+
+    static class UrlImageSource extends ImageSource {
+        private URL url;
+
+        UrlImageSource(URL url){
+            super();
+            this.url = url;
+        }
+
+        @Override
+        String getKey() {
+            return this.url.toString();
+        }
+
+        @Override
+        InputStream open() throws IOException {
+            return this.url.openStream();
+        }
+    }
+
+    /**
+     * Loads and decodes images on background threads, keeping the decoded images in an
+     * {@link ImageCache}. Asking for an image that is already being loaded just waits
+     * on the same load.
+     */
+    static class ImageLoader {
+
+        private static final long DEFAULT_CACHE_BYTES = 32 * 1024 * 1024;
+
+        private static final ImageLoader SHARED = new ImageLoader(new ImageCache(DEFAULT_CACHE_BYTES), 2);
+
+        private final ImageCache cache;
+        private final ExecutorService executor;
+
+        private final ConcurrentMap<String,CompletableFuture<Image>> loading =
+                new ConcurrentHashMap<String,CompletableFuture<Image>>();
+
+        ImageLoader(ImageCache cache, int threads){
+            super();
+            this.cache = cache;
+            this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "logo-image-loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        static ImageLoader shared(){
+            return SHARED;
+        }
+
+        CompletableFuture<Image> load(final ImageSource source){
+            final String key = source.getKey();
+
+            Image cached = this.cache.get(key);
+            if(cached != null){
+                return CompletableFuture.completedFuture(cached);
+            }
+
+            CompletableFuture<Image> future = new CompletableFuture<Image>();
+            CompletableFuture<Image> existing = this.loading.putIfAbsent(key, future);
+            if(existing != null){
+                return existing;
+            }
+
+            final CompletableFuture<Image> result = future;
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Image image = decode(source);
+                        cache.put(key, image);
+                        result.complete(image);
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Couldn't load the image " + key + ": " + e.getMessage());
+                        result.completeExceptionally(e);
+                    } finally {
+                        loading.remove(key, result);
+                    }
+                }
+            });
+            return result;
+        }
+
+        private static BufferedImage decode(ImageSource source) throws IOException {
+            InputStream in = source.open();
+            try {
+                BufferedImage image = ImageIO.read(in);
+                if(image == null){
+                    throw new IOException("Not an image format ImageIO can read.");
+                }
+                return image;
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Decoded images, least recently used first out once they take up more than the budget.
+     */
+    static class ImageCache {
+
+        private final long maxBytes;
+        private long bytes;
+
+        private final LinkedHashMap<String,Image> images = new LinkedHashMap<String,Image>(16, 0.75f, true);
+
+        ImageCache(long maxBytes){
+            super();
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Image get(String key){
+            return this.images.get(key);
+        }
+
+        synchronized void put(String key, Image image){
+            Image old = this.images.put(key, image);
+            if(old != null){
+                this.bytes -= sizeOf(old);
+            }
+            this.bytes += sizeOf(image);
+
+            //Evict oldest first. The image just put is never evicted, however big, since the
+            //caller is about to draw it and would only load it again.
+            Iterator<Map.Entry<String,Image>> i = this.images.entrySet().iterator();
+            while(this.bytes > this.maxBytes && this.images.size() > 1){
+                Map.Entry<String,Image> eldest = i.next();
+                this.bytes -= sizeOf(eldest.getValue());
+                i.remove();
+            }
+        }
+
+        synchronized long sizeInBytes(){
+            return this.bytes;
+        }
+
+        /**
+         * Four bytes a pixel -- about what a decoded ARGB image takes.
+         */
+        private static long sizeOf(Image image){
+            return 4L * Math.max(0, image.getWidth(null)) * Math.max(0, image.getHeight(null));
+        }
+    }
+
+    /**
+     * An append-only log of the commands that have been run.
+     *
+     * Each command is written as its one-byte opcode (the move commands have no other
+     * arguments), with the high bit set if the command was undone rather than run.
+     * Records are collected in a buffer and written to the file in batches, whenever the
+     * buffer fills and at least every flush interval, so a killed window loses at most
+     * that long's worth of commands.
+     */
+    public static class CommandJournal implements Closeable {
+
+        static final int MAGIC = 0x434D444A;
+        static final int UNDO_FLAG = 0x80;
+
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ScheduledExecutorService flusher;
+
+        /**
+         * @param flushMillis the longest a command stays in the buffer before it's written
+         */
+        CommandJournal(Path file, long flushMillis) throws IOException {
+            super();
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if(this.channel.size() == 0){
+                this.buffer.putInt(MAGIC);
+            }
+
+            this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "command-journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        //Stop trying. Appends fail too once the buffer fills, and the Invoker gives up then.
+                        System.err.println("Error writing the journal: " + e.getMessage());
+                        flusher.shutdown();
+                    }
+                }
+            }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void append(ActionCommand command) throws IOException {
+            this.append(command, false);
+        }
+
+        /**
+         * @param undo true if the command was undone rather than run
+         */
+        synchronized void append(ActionCommand command, boolean undo) throws IOException {
+            if(! (command instanceof AbstractMoveCommand)){
+                throw new IllegalArgumentException("Don't know how to journal " + command);
+            }
+            if(! this.channel.isOpen()){
+                throw new ClosedChannelException();
+            }
+            if(! this.buffer.hasRemaining()){
+                this.flush();
+            }
+            int opcode = ((AbstractMoveCommand) command).getOpcode();
+            this.buffer.put((byte) (undo ? opcode | UNDO_FLAG : opcode));
+        }
+
+        /**
+         * Write out whatever is buffered.
+         */
+        synchronized void flush() throws IOException {
+            if(this.buffer.position() == 0){
+                return;
+            }
+            this.buffer.flip();
+            try {
+                while(this.buffer.hasRemaining()){
+                    this.channel.write(this.buffer);
+                }
+            } finally {
+                //Keep anything that didn't get written for next time.
+                this.buffer.compact();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            this.flusher.shutdown();
+            if(this.channel.isOpen()){
+                try {
+                    this.flush();
+                } finally {
+                    this.channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Plays a {@link CommandJournal} back against a Logo, straight from the bytes.
+     *
+     * There's one command object per opcode, bound to the Logo up front, so the replay
+     * loop doesn't allocate and never touches Swing.
+     */
+    public static class CommandReplay {
+
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        public static void main(String[] args) throws IOException {
+            Logo logo = new Logo(0, 0);
+
+            long start = System.nanoTime();
+            long count = replay(Paths.get(args[0]), logo);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println("Replayed " + count + " commands in " + (elapsed / 1000000) + " ms"
+                    + " (" + (long) (count / (elapsed / 1e9)) + " commands/sec).");
+            System.out.println("The logo ended up at (" + logo.x + ", " + logo.y + ").");
+        }
+
+        /**
+         * @return how many commands were replayed
+         */
+        static long replay(Path file, Logo logo) throws IOException {
+            AbstractMoveCommand[] commands = AbstractMoveCommand.bindAll(logo);
+
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(4);
+                while(header.hasRemaining() && channel.read(header) >= 0){
+                    //keep reading
+                }
+                if(header.hasRemaining() || header.getInt(0) != CommandJournal.MAGIC){
+                    throw new IOException("Not a command journal: " + file);
+                }
+
+                //Every record is a single byte, so a read never ends part way through one.
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                long count = 0;
+                while(channel.read(buffer) >= 0){
+                    buffer.flip();
+                    while(buffer.hasRemaining()){
+                        int record = buffer.get() & 0xFF;
+                        int opcode = record & ~CommandJournal.UNDO_FLAG;
+                        AbstractMoveCommand command = (opcode < commands.length) ? commands[opcode] : null;
+                        if(command == null){
+                            throw new IOException("Unknown opcode " + opcode + " at command " + count);
+                        }
+                        if(record == opcode){
+                            command.execute();
+                        } else {
+                            command.undo();
+                        }
+                        count++;
+                    }
+                    buffer.clear();
+                }
+                return count;
+            } finally {
+                channel.close();
+            }
         }
     }
 
@@ -106,57 +1113,170 @@ public class Command {
         void execute();
     }
 
-    static abstract class AbstractMoveCommand implements ActionCommand {
+    /**
+     * A command that can be taken back.
+     */
+    interface UndoableCommand extends ActionCommand {
+        void undo();
+        void redo();
+    }
+
+    static class UndoCommand implements ActionCommand {
+        private MovementInvoker invoker;
+
+        UndoCommand(MovementInvoker invoker){
+            super();
+            this.invoker = invoker;
+        }
+
+        @Override
+        public void execute() {
+            invoker.undo();
+        }
+    }
+
+    static class RedoCommand implements ActionCommand {
+        private MovementInvoker invoker;
+
+        RedoCommand(MovementInvoker invoker){
+            super();
+            this.invoker = invoker;
+        }
+
+        @Override
+        public void execute() {
+            invoker.redo();
+        }
+    }
+
+    static abstract class AbstractMoveCommand implements UndoableCommand {
+        static final int OPCODE_COUNT = 5;
+
         final protected int STEP = 10;
         Logo logo;
         AbstractMoveCommand(Logo logo){
             super();
             this.logo = logo;
         }
+
+        @Override
+        public void redo() {
+            this.execute();
+        }
+
+        /**
+         * @return the byte identifying this command in a {@link CommandJournal}
+         */
+        abstract byte getOpcode();
+
+        /**
+         * @return one of each move command bound to the Logo, indexed by opcode
+         */
+        static AbstractMoveCommand[] bindAll(Logo logo){
+            AbstractMoveCommand[] commands = new AbstractMoveCommand[]{
+                    new MoveUpCommand(logo),
+                    new MoveDownCommand(logo),
+                    new MoveLeftCommand(logo),
+                    new MoveRightCommand(logo)};
+
+            AbstractMoveCommand[] byOpcode = new AbstractMoveCommand[OPCODE_COUNT];
+            for(AbstractMoveCommand command : commands){
+                byOpcode[command.getOpcode()] = command;
+            }
+            return byOpcode;
+        }
     }
 
     static class MoveUpCommand extends AbstractMoveCommand {
+        static final byte OPCODE = 1;
+
         MoveUpCommand(Logo logo){
             super(logo);
         }
 
+        @Override
+        byte getOpcode() {
+            return OPCODE;
+        }
+
         @Override
         public void execute() {
             logo.y -= STEP;
         }
+
+        @Override
+        public void undo() {
+            logo.y += STEP;
+        }
     }
 
     static class MoveDownCommand extends AbstractMoveCommand {
+        static final byte OPCODE = 2;
+
         MoveDownCommand(Logo logo){
             super(logo);
         }
 
+        @Override
+        byte getOpcode() {
+            return OPCODE;
+        }
+
         @Override
         public void execute() {
             logo.y += STEP;
         }
+
+        @Override
+        public void undo() {
+            logo.y -= STEP;
+        }
     }
 
     static class MoveLeftCommand extends AbstractMoveCommand {
+        static final byte OPCODE = 3;
+
         MoveLeftCommand(Logo logo){
             super(logo);
         }
 
+        @Override
+        byte getOpcode() {
+            return OPCODE;
+        }
+
         @Override
         public void execute() {
             logo.x -= STEP;
         }
+
+        @Override
+        public void undo() {
+            logo.x += STEP;
+        }
     }
 
     static class MoveRightCommand extends AbstractMoveCommand {
+        static final byte OPCODE = 4;
+
         MoveRightCommand(Logo logo){
             super(logo);
         }
 
+        @Override
+        byte getOpcode() {
+            return OPCODE;
+        }
+
         @Override
         public void execute() {
             logo.x += STEP;
         }
+
+        @Override
+        public void undo() {
+            logo.x -= STEP;
+        }
     }
 
 }
\ No newline at end of file
@@ -1,8 +1,26 @@
 package patterns.doubledispatch;
 
+import patterns.benchmark.Timing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A Double Dispatch Demo.
@@ -32,18 +50,1027 @@ public class DoubleDispatch {
         worker.assemble(part);
         worker.assemble(widget);
         worker.assemble(gadget);
+
+        //Or generate an implementation of Worker that does the dispatch itself.
+        worker = DoubleDispatchWrapper.wrap(new FactoryWorker(), Worker.class, DoubleDispatchWrapper.Mode.GENERATED);
+
+        System.out.println("\nThis is using Double Dispatch using a generated class.");
+        System.out.println("------------------------------------------------------");
+        worker.assemble(part);
+        worker.assemble(widget);
+        worker.assemble(gadget);
     }
 
     /**
      * A Proxy/Reflection based wrapper to enable Double Dispatch.
+     *
+     * The correct overload for a set of runtime argument types is only looked up once,
+     * then kept as a MethodHandle in the delegate Class's {@link DispatchTable}.
      */
     static class DoubleDispatchWrapper {
 
+        /**
+         * How the wrapper gets built.
+         */
+        enum Mode {
+            /** A java.lang.reflect.Proxy calling cached MethodHandles. */
+            PROXY,
+            /** A generated class, see {@link DispatchClassGenerator}. */
+            GENERATED
+        }
+
+        private static final Object[] NO_ARGS = new Object[0];
+
+        static <T> T wrap(T delegate, Class<T> proxyInterface){
+            return wrap(delegate, proxyInterface, Mode.PROXY);
+        }
+
         @SuppressWarnings("unchecked")
-        static <T> T wrap(final T delegate, Class<T> proxyInterface){
+        static <T> T wrap(final T delegate, Class<T> proxyInterface, Mode mode){
+            if(mode == Mode.GENERATED){
+                return DispatchClassGenerator.wrap(delegate, proxyInterface);
+            }
+
+            final DispatchTable table = DispatchTable.forClass(delegate.getClass());
+
             return (T) Proxy.newProxyInstance(
                 DoubleDispatchWrapper.class.getClassLoader(),
                 new Class<?>[]{proxyInterface},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if(args == null){
+                            args = NO_ARGS;
+                        }
+
+                        //Adjust the method -- get the correct one for the correct params.
+                        MethodHandle correctMethod = table.forMethod(method).lookup(args);
+
+                        return correctMethod.invokeExact(delegate, args);
+                    }
+                });
+        }
+    }
+
+    /**
+     * The resolved overloads of one delegate Class, keyed by the interface Method.
+     */
+    static class DispatchTable {
+
+        private static final ClassValue<DispatchTable> TABLES = new ClassValue<DispatchTable>() {
+            @Override
+            protected DispatchTable computeValue(Class<?> type) {
+                return new DispatchTable(type);
+            }
+        };
+
+        private final Class<?> delegateClass;
+
+        private final ConcurrentMap<Method,MethodDispatch> methods = new ConcurrentHashMap<Method,MethodDispatch>();
+
+        private DispatchTable(Class<?> delegateClass){
+            super();
+            this.delegateClass = delegateClass;
+        }
+
+        static DispatchTable forClass(Class<?> delegateClass){
+            return TABLES.get(delegateClass);
+        }
+
+        MethodDispatch forMethod(Method method){
+            MethodDispatch dispatch = this.methods.get(method);
+            if(dispatch == null){
+                MethodDispatch created = new MethodDispatch(this.delegateClass, method);
+                dispatch = this.methods.putIfAbsent(method, created);
+                if(dispatch == null){
+                    dispatch = created;
+                }
+            }
+            return dispatch;
+        }
+    }
+
+    /**
+     * Picks the most specific overload for a set of runtime argument types, the same way
+     * javac would have if it had known those types at compile time.
+     *
+     * An overload is applicable if each argument type is assignable to its parameter type.
+     * Of the applicable overloads the one more specific than all the others wins.
+     * If there is no single winner the call is ambiguous.
+     */
+    static class OverloadResolver {
+
+        static Method resolve(Class<?> delegateClass, String name, Class<?>[] argTypes) throws NoSuchMethodException {
+            List<Method> applicable = new ArrayList<Method>();
+            for(Method overload : overloads(delegateClass, name, argTypes.length)){
+                if(isApplicable(overload.getParameterTypes(), argTypes)){
+                    applicable.add(overload);
+                }
+            }
+
+            if(applicable.isEmpty()){
+                throw new NoSuchMethodException(
+                        delegateClass.getName() + "." + name + describe(argTypes));
+            }
+
+            List<Method> mostSpecific = new ArrayList<Method>();
+            for(Method candidate : applicable){
+                boolean dominated = false;
+                for(Method other : applicable){
+                    if(isMoreSpecific(other.getParameterTypes(), candidate.getParameterTypes())){
+                        dominated = true;
+                        break;
+                    }
+                }
+                if(! dominated){
+                    mostSpecific.add(candidate);
+                }
+            }
+
+            if(mostSpecific.size() > 1){
+                throw new IllegalArgumentException("Ambiguous call to " + delegateClass.getName() + "."
+                        + name + describe(argTypes) + ", could be any of " + mostSpecific);
+            }
+
+            return mostSpecific.get(0);
+        }
+
+        /**
+         * All of the instance methods with this name and arity, walking up the superclasses and
+         * into any default methods on the interfaces. An override hides what it overrides.
+         */
+        static List<Method> overloads(Class<?> type, String name, int arity){
+            List<Method> overloads = new ArrayList<Method>();
+            Set<List<Class<?>>> seen = new HashSet<List<Class<?>>>();
+
+            List<Class<?>> interfaces = new ArrayList<Class<?>>();
+            for(Class<?> t = type; t != null; t = t.getSuperclass()){
+                addOverloads(t, name, arity, overloads, seen);
+                interfaces.addAll(Arrays.asList(t.getInterfaces()));
+            }
+            for(int i=0;i<interfaces.size();i++){
+                Class<?> t = interfaces.get(i);
+                addOverloads(t, name, arity, overloads, seen);
+                interfaces.addAll(Arrays.asList(t.getInterfaces()));
+            }
+
+            return overloads;
+        }
+
+        private static void addOverloads(Class<?> type, String name, int arity,
+                                         List<Method> overloads, Set<List<Class<?>>> seen){
+            for(Method method : type.getDeclaredMethods()){
+                int modifiers = method.getModifiers();
+                if(method.getName().equals(name)
+                        && method.getParameterCount() == arity
+                        && ! Modifier.isStatic(modifiers)
+                        && ! Modifier.isPrivate(modifiers)
+                        && ! Modifier.isAbstract(modifiers)
+                        && ! method.isBridge()
+                        && seen.add(Arrays.<Class<?>>asList(method.getParameterTypes()))){
+                    overloads.add(method);
+                }
+            }
+        }
+
+        static boolean isApplicable(Class<?>[] params, Class<?>[] argTypes){
+            for(int i=0;i<params.length;i++){
+                if(params[i].isPrimitive()){
+                    if(MethodType.methodType(params[i]).wrap().returnType() != argTypes[i]){
+                        return false;
+                    }
+                } else if(! params[i].isAssignableFrom(argTypes[i])){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if every parameter of a fits the matching parameter of b, and they differ
+         */
+        static boolean isMoreSpecific(Class<?>[] a, Class<?>[] b){
+            for(int i=0;i<a.length;i++){
+                if(! b[i].isAssignableFrom(a[i])){
+                    return false;
+                }
+            }
+            return ! Arrays.equals(a, b);
+        }
+
+        private static String describe(Class<?>[] argTypes){
+            StringBuilder sb = new StringBuilder("(");
+            for(int i=0;i<argTypes.length;i++){
+                if(i > 0){
+                    sb.append(", ");
+                }
+                sb.append(argTypes[i].getName());
+            }
+            return sb.append(")").toString();
+        }
+    }
+
+    /**
+     * The resolved overloads of one method, keyed by the runtime argument Classes.
+     *
+     * A handful of recently used entries are kept in a small array that is checked first.
+     * Usually the same few argument types show up over and over, and then a lookup is
+     * just a few reference compares -- no allocation and no hashing.
+     */
+    static class MethodDispatch {
+
+        private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+        private static final MethodType INVOKER_TYPE =
+                MethodType.methodType(Object.class, Object.class, Object[].class);
+
+        private static final int RECENT_SIZE = 4;
+
+        private final Class<?> delegateClass;
+        private final String name;
+        private final Class<?>[] declaredTypes;
+
+        private final ConcurrentMap<Signature,Entry> entries = new ConcurrentHashMap<Signature,Entry>();
+
+        private volatile Entry[] recent = new Entry[0];
+
+        MethodDispatch(Class<?> delegateClass, Method method){
+            super();
+            this.delegateClass = delegateClass;
+            this.name = method.getName();
+            this.declaredTypes = method.getParameterTypes();
+        }
+
+        /**
+         * @return a handle of type (Object delegate, Object[] args)Object for the overload matching the args
+         */
+        MethodHandle lookup(Object[] args) throws NoSuchMethodException, IllegalAccessException {
+            Entry[] recent = this.recent;
+            for(int i=0;i<recent.length;i++){
+                if(recent[i].matches(args, this.declaredTypes)){
+                    return recent[i].handle;
+                }
+            }
+
+            Class<?>[] params = new Class<?>[args.length];
+            for(int i=0;i<args.length;i++){
+                params[i] = typeOf(args[i], this.declaredTypes[i]);
+            }
+
+            Signature signature = new Signature(params);
+            Entry entry = this.entries.get(signature);
+            if(entry == null){
+                entry = this.resolve(params);
+                Entry existing = this.entries.putIfAbsent(signature, entry);
+                if(existing != null){
+                    entry = existing;
+                }
+            }
+            this.remember(recent, entry);
+
+            return entry.handle;
+        }
+
+        /**
+         * Put the entry at the front of the recent array, dropping the oldest if it's full.
+         * Racing threads may lose an update here, which only costs a later map lookup.
+         */
+        private void remember(Entry[] recent, Entry entry){
+            Entry[] updated = new Entry[Math.min(recent.length + 1, RECENT_SIZE)];
+            updated[0] = entry;
+            System.arraycopy(recent, 0, updated, 1, updated.length - 1);
+            this.recent = updated;
+        }
+
+        /**
+         * A null argument has no runtime type, so it's dispatched on the interface's declared type.
+         */
+        static Class<?> typeOf(Object arg, Class<?> declaredType){
+            return (arg == null) ? declaredType : arg.getClass();
+        }
+
+        private Entry resolve(Class<?>[] params) throws NoSuchMethodException, IllegalAccessException {
+            Method correctMethod = OverloadResolver.resolve(this.delegateClass, this.name, params);
+            correctMethod.trySetAccessible();
+
+            MethodHandle handle = LOOKUP.unreflect(correctMethod)
+                    .asSpreader(Object[].class, params.length)
+                    .asType(INVOKER_TYPE);
+
+            return new Entry(params, handle);
+        }
+
+        static class Entry {
+            private final Class<?>[] types;
+            private final MethodHandle handle;
+
+            Entry(Class<?>[] types, MethodHandle handle){
+                super();
+                this.types = types;
+                this.handle = handle;
+            }
+
+            boolean matches(Object[] args, Class<?>[] declaredTypes){
+                for(int i=0;i<args.length;i++){
+                    if(typeOf(args[i], declaredTypes[i]) != this.types[i]){
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        static class Signature {
+            private final Class<?>[] types;
+            private final int hash;
+
+            Signature(Class<?>[] types){
+                super();
+                this.types = types;
+                this.hash = Arrays.hashCode(types);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Signature && Arrays.equals(this.types, ((Signature) o).types);
+            }
+
+            @Override
+            public int hashCode() {
+                return this.hash;
+            }
+        }
+    }
+
+    /**
+     * Generates a real implementation of the wrapped interface at wrap time.
+     *
+     * Each interface method becomes an instanceof cascade over the delegate's overloads,
+     * most specific first, ending with the overload that matches the interface exactly:
+     *
+     *     if(part instanceof Widget) { delegate.assemble((Widget) part); return; }
+     *     if(part instanceof Gadget) { delegate.assemble((Gadget) part); return; }
+     *     delegate.assemble(part);
+     *
+     * The class is defined as a hidden class next to the interface, so dispatch is a plain
+     * virtual call the JIT can inline straight through.
+     *
+     * A null argument fails every instanceof and ends up at the exact overload. Where two
+     * overloads are equally specific the cascade just takes the first one that fits -- use
+     * {@link DoubleDispatchWrapper.Mode#PROXY} to have ambiguous calls reported instead.
+     */
+    static class DispatchClassGenerator {
+
+        private static final ClassValue<ConcurrentMap<Class<?>,MethodHandle>> CONSTRUCTORS =
+                new ClassValue<ConcurrentMap<Class<?>,MethodHandle>>() {
+                    @Override
+                    protected ConcurrentMap<Class<?>,MethodHandle> computeValue(Class<?> type) {
+                        return new ConcurrentHashMap<Class<?>,MethodHandle>();
+                    }
+                };
+
+        private static final String DELEGATE_FIELD = "delegate";
+
+        //A Proxy hands these to its InvocationHandler too, so the generated class forwards them the same way.
+        private static final List<Method> OBJECT_METHODS = objectMethods();
+
+        @SuppressWarnings("unchecked")
+        static <T> T wrap(T delegate, Class<T> proxyInterface){
+            ConcurrentMap<Class<?>,MethodHandle> constructors = CONSTRUCTORS.get(delegate.getClass());
+
+            MethodHandle constructor = constructors.get(proxyInterface);
+            if(constructor == null){
+                constructor = define(delegate.getClass(), proxyInterface);
+                MethodHandle existing = constructors.putIfAbsent(proxyInterface, constructor);
+                if(existing != null){
+                    constructor = existing;
+                }
+            }
+
+            try {
+                return (T) constructor.invoke(delegate);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static MethodHandle define(Class<?> delegateClass, Class<?> proxyInterface){
+            if(! proxyInterface.isInterface()){
+                throw new IllegalArgumentException(proxyInterface.getName() + " is not an interface.");
+            }
+            if(! isAccessible(delegateClass, proxyInterface)){
+                throw new IllegalArgumentException(
+                        delegateClass.getName() + " is not accessible from " + proxyInterface.getPackageName());
+            }
+
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(proxyInterface, MethodHandles.lookup());
+                byte[] bytes = generate(delegateClass, proxyInterface);
+
+                Class<?> generated = lookup.defineHiddenClass(bytes, true).lookupClass();
+
+                return lookup.findConstructor(generated, MethodType.methodType(void.class, delegateClass))
+                        .asType(MethodType.methodType(Object.class, Object.class));
+            } catch (IllegalAccessException | NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static byte[] generate(Class<?> delegateClass, Class<?> proxyInterface){
+            String className = internalName(proxyInterface) + "$Dispatch";
+            String delegateDescriptor = descriptor(delegateClass);
+
+            ConstantPool pool = new ConstantPool();
+            int thisClass = pool.classRef(className);
+            int superClass = pool.classRef("java/lang/Object");
+            int interfaceClass = pool.classRef(internalName(proxyInterface));
+            int delegateField = pool.fieldRef(className, DELEGATE_FIELD, delegateDescriptor);
+
+            List<byte[]> methods = new ArrayList<byte[]>();
+            methods.add(constructor(pool, delegateField, delegateDescriptor));
+
+            List<Method> implemented = new ArrayList<Method>(Arrays.asList(proxyInterface.getMethods()));
+            implemented.addAll(OBJECT_METHODS);
+
+            Set<String> seen = new HashSet<String>();
+            for(Method method : implemented){
+                if(Modifier.isStatic(method.getModifiers())){
+                    continue;
+                }
+                if(seen.add(method.getName() + MethodType.methodType(method.getReturnType(), method.getParameterTypes()))){
+                    methods.add(dispatchMethod(pool, delegateClass, proxyInterface, method, delegateField));
+                }
+            }
+
+            int fieldName = pool.utf8(DELEGATE_FIELD);
+            int fieldType = pool.utf8(delegateDescriptor);
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(52);
+                pool.writeTo(out);
+
+                out.writeShort(Modifier.FINAL | 0x0020); //ACC_SUPER
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(interfaceClass);
+
+                out.writeShort(1);
+                out.writeShort(Modifier.PRIVATE | Modifier.FINAL);
+                out.writeShort(fieldName);
+                out.writeShort(fieldType);
+                out.writeShort(0);
+
+                out.writeShort(methods.size());
+                for(byte[] method : methods){
+                    out.write(method);
+                }
+
+                out.writeShort(0);
+                out.flush();
+
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static List<Method> objectMethods(){
+            try {
+                return Arrays.asList(
+                        Object.class.getMethod("toString"),
+                        Object.class.getMethod("equals", Object.class),
+                        Object.class.getMethod("hashCode"));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static byte[] constructor(ConstantPool pool, int delegateField, String delegateDescriptor){
+            MethodBuilder method = new MethodBuilder(pool, Modifier.PUBLIC, "<init>", "(" + delegateDescriptor + ")V");
+
+            method.op(0x2A); //aload_0
+            method.op(0xB7); //invokespecial
+            method.u2(pool.methodRef("java/lang/Object", "<init>", "()V"));
+            method.op(0x2A); //aload_0
+            method.op(0x2B); //aload_1
+            method.op(0xB5); //putfield
+            method.u2(delegateField);
+            method.op(0xB1); //return
+
+            return method.toBytes(2, 2);
+        }
+
+        private static byte[] dispatchMethod(ConstantPool pool, Class<?> delegateClass, Class<?> proxyInterface,
+                                             Method method, int delegateField){
+            Class<?>[] params = method.getParameterTypes();
+            String methodDescriptor = MethodType.methodType(method.getReturnType(), params).toMethodDescriptorString();
+
+            MethodBuilder builder = new MethodBuilder(pool, Modifier.PUBLIC, method.getName(), methodDescriptor);
+
+            int[] slots = new int[params.length];
+            int nextSlot = 1;
+            for(int i=0;i<params.length;i++){
+                slots[i] = nextSlot;
+                nextSlot += slotSize(params[i]);
+            }
+
+            boolean terminated = false;
+            for(Method overload : candidates(delegateClass, proxyInterface, method)){
+                Class<?>[] overloadParams = overload.getParameterTypes();
+
+                if(builder.length() > 0){
+                    builder.frame();
+                }
+
+                //Guard on every parameter the overload narrows.
+                List<Integer> branches = new ArrayList<Integer>();
+                for(int i=0;i<params.length;i++){
+                    if(overloadParams[i] != params[i]){
+                        builder.op(0x19); //aload
+                        builder.op(slots[i]);
+                        builder.op(0xC1); //instanceof
+                        builder.u2(pool.classRef(internalName(overloadParams[i])));
+                        branches.add(builder.op(0x99)); //ifeq
+                        builder.u2(0);
+                    }
+                }
+
+                builder.op(0x2A); //aload_0
+                builder.op(0xB4); //getfield
+                builder.u2(delegateField);
+                for(int i=0;i<params.length;i++){
+                    load(builder, params[i], slots[i]);
+                    if(overloadParams[i] != params[i]){
+                        builder.op(0xC0); //checkcast
+                        builder.u2(pool.classRef(internalName(overloadParams[i])));
+                    }
+                }
+                builder.op(0xB6); //invokevirtual
+                builder.u2(pool.methodRef(internalName(delegateClass), overload.getName(),
+                        MethodType.methodType(overload.getReturnType(), overloadParams).toMethodDescriptorString()));
+                doReturn(builder, overload.getReturnType(), method.getReturnType());
+
+                for(int branch : branches){
+                    builder.patch(branch + 1, builder.length() - branch);
+                }
+
+                if(branches.isEmpty()){
+                    terminated = true;
+                    break;
+                }
+            }
+
+            if(! terminated){
+                //Nothing on the delegate matched the exact signature, so call it through the interface.
+                if(builder.length() > 0){
+                    builder.frame();
+                }
+                builder.op(0x2A); //aload_0
+                builder.op(0xB4); //getfield
+                builder.u2(delegateField);
+                for(int i=0;i<params.length;i++){
+                    load(builder, params[i], slots[i]);
+                }
+                builder.op(0xB9); //invokeinterface
+                builder.u2(pool.interfaceMethodRef(internalName(method.getDeclaringClass()), method.getName(), methodDescriptor));
+                builder.op(nextSlot);
+                builder.op(0);
+                doReturn(builder, method.getReturnType(), method.getReturnType());
+            }
+
+            return builder.toBytes(nextSlot + 2, nextSlot);
+        }
+
+        /**
+         * The delegate's overloads that can handle a call to the interface method, most specific first.
+         */
+        static List<Method> candidates(Class<?> delegateClass, Class<?> proxyInterface, Method method){
+            List<Method> applicable = new ArrayList<Method>();
+            for(Method overload : OverloadResolver.overloads(delegateClass, method.getName(), method.getParameterCount())){
+                if(isCandidate(overload, proxyInterface, method)){
+                    applicable.add(overload);
+                }
+            }
+
+            //Repeatedly take an overload that nothing remaining is more specific than.
+            List<Method> ordered = new ArrayList<Method>();
+            while(! applicable.isEmpty()){
+                Method next = applicable.get(0);
+                for(Method other : applicable){
+                    if(other != next && OverloadResolver.isMoreSpecific(other.getParameterTypes(), next.getParameterTypes())){
+                        next = other;
+                    }
+                }
+                applicable.remove(next);
+                ordered.add(next);
+            }
+
+            return ordered;
+        }
+
+        private static boolean isCandidate(Method overload, Class<?> proxyInterface, Method method){
+            if(overload.isSynthetic()){
+                return false;
+            }
+            if(! Modifier.isPublic(overload.getModifiers())
+                    && ! overload.getDeclaringClass().getPackageName().equals(proxyInterface.getPackageName())){
+                return false;
+            }
+
+            Class<?>[] params = method.getParameterTypes();
+            Class<?>[] overloadParams = overload.getParameterTypes();
+            for(int i=0;i<params.length;i++){
+                if(params[i].isPrimitive() || overloadParams[i].isPrimitive()){
+                    if(params[i] != overloadParams[i]){
+                        return false;
+                    }
+                } else if(! params[i].isAssignableFrom(overloadParams[i])
+                        || ! isAccessible(overloadParams[i], proxyInterface)){
+                    return false;
+                }
+            }
+
+            Class<?> returnType = method.getReturnType();
+            Class<?> overloadReturn = overload.getReturnType();
+            if(returnType == void.class){
+                return true;
+            }
+            if(returnType.isPrimitive() || overloadReturn.isPrimitive()){
+                return returnType == overloadReturn;
+            }
+            return returnType.isAssignableFrom(overloadReturn);
+        }
+
+        private static boolean isAccessible(Class<?> type, Class<?> from){
+            while(type.isArray()){
+                type = type.getComponentType();
+            }
+            if(type.isPrimitive()){
+                return true;
+            }
+            if(type.getPackageName().equals(from.getPackageName()) && type.getClassLoader() == from.getClassLoader()){
+                return ! Modifier.isPrivate(type.getModifiers());
+            }
+            for(Class<?> t = type; t != null; t = t.getEnclosingClass()){
+                if(! Modifier.isPublic(t.getModifiers())){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static void load(MethodBuilder builder, Class<?> type, int slot){
+            if(type == long.class){
+                builder.op(0x16); //lload
+            } else if(type == float.class){
+                builder.op(0x17); //fload
+            } else if(type == double.class){
+                builder.op(0x18); //dload
+            } else if(type.isPrimitive()){
+                builder.op(0x15); //iload
+            } else {
+                builder.op(0x19); //aload
+            }
+            builder.op(slot);
+        }
+
+        private static void doReturn(MethodBuilder builder, Class<?> actual, Class<?> declared){
+            if(declared == void.class){
+                if(actual != void.class){
+                    builder.op(slotSize(actual) == 2 ? 0x58 : 0x57); //pop2 : pop
+                }
+                builder.op(0xB1); //return
+            } else if(declared == long.class){
+                builder.op(0xAD); //lreturn
+            } else if(declared == float.class){
+                builder.op(0xAE); //freturn
+            } else if(declared == double.class){
+                builder.op(0xAF); //dreturn
+            } else if(declared.isPrimitive()){
+                builder.op(0xAC); //ireturn
+            } else {
+                builder.op(0xB0); //areturn
+            }
+        }
+
+        private static int slotSize(Class<?> type){
+            return (type == long.class || type == double.class) ? 2 : 1;
+        }
+
+        private static String internalName(Class<?> type){
+            return type.getName().replace('.', '/');
+        }
+
+        private static String descriptor(Class<?> type){
+            return MethodType.methodType(type).toMethodDescriptorString().substring(2);
+        }
+
+        /**
+         * A minimal class file constant pool.
+         */
+        static class ConstantPool {
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            private final DataOutputStream out = new DataOutputStream(bytes);
+            private final Map<String,Integer> entries = new HashMap<String,Integer>();
+            private int count = 1;
+
+            int utf8(String value){
+                Integer index = this.entries.get("utf8:" + value);
+                if(index == null){
+                    index = this.add("utf8:" + value, 1);
+                    try {
+                        this.out.writeUTF(value);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return index;
+            }
+
+            int classRef(String internalName){
+                int name = this.utf8(internalName);
+                return this.entry("class:" + internalName, 7, name);
+            }
+
+            int fieldRef(String owner, String name, String descriptor){
+                return this.memberRef(9, owner, name, descriptor);
+            }
+
+            int methodRef(String owner, String name, String descriptor){
+                return this.memberRef(10, owner, name, descriptor);
+            }
+
+            int interfaceMethodRef(String owner, String name, String descriptor){
+                return this.memberRef(11, owner, name, descriptor);
+            }
+
+            private int memberRef(int tag, String owner, String name, String descriptor){
+                int ownerIndex = this.classRef(owner);
+                int nameIndex = this.utf8(name);
+                int descriptorIndex = this.utf8(descriptor);
+                int nameAndType = this.entry("nat:" + name + ":" + descriptor, 12, nameIndex, descriptorIndex);
+                return this.entry(tag + ":" + owner + "." + name + ":" + descriptor, tag, ownerIndex, nameAndType);
+            }
+
+            private int entry(String key, int tag, int... indexes){
+                Integer index = this.entries.get(key);
+                if(index == null){
+                    index = this.add(key, tag);
+                    try {
+                        for(int i : indexes){
+                            this.out.writeShort(i);
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return index;
+            }
+
+            private int add(String key, int tag){
+                this.bytes.write(tag);
+                int index = this.count++;
+                this.entries.put(key, index);
+                return index;
+            }
+
+            void writeTo(DataOutputStream target) throws IOException {
+                this.out.flush();
+                target.writeShort(this.count);
+                this.bytes.writeTo(target);
+            }
+        }
+
+        /**
+         * A method_info under construction -- the bytecode plus its stack map frames.
+         *
+         * Every frame recorded here is a 'same' frame: each branch target sits at the start
+         * of a dispatch case, with the method's own arguments as locals and an empty stack.
+         */
+        static class MethodBuilder {
+            private final int access;
+            private final int name;
+            private final int descriptor;
+            private final int codeAttribute;
+            private final int stackMapAttribute;
+
+            private byte[] code = new byte[64];
+            private int length;
+
+            private final List<Integer> frames = new ArrayList<Integer>();
+
+            MethodBuilder(ConstantPool pool, int access, String name, String descriptor){
+                super();
+                this.access = access;
+                this.name = pool.utf8(name);
+                this.descriptor = pool.utf8(descriptor);
+                this.codeAttribute = pool.utf8("Code");
+                this.stackMapAttribute = pool.utf8("StackMapTable");
+            }
+
+            int op(int value){
+                if(this.length == this.code.length){
+                    this.code = Arrays.copyOf(this.code, this.code.length * 2);
+                }
+                this.code[this.length] = (byte) value;
+                return this.length++;
+            }
+
+            void u2(int value){
+                this.op(value >> 8);
+                this.op(value);
+            }
+
+            void patch(int position, int value){
+                this.code[position] = (byte) (value >> 8);
+                this.code[position + 1] = (byte) value;
+            }
+
+            int length(){
+                return this.length;
+            }
+
+            void frame(){
+                this.frames.add(this.length);
+            }
+
+            byte[] toBytes(int maxStack, int maxLocals){
+                try {
+                    ByteArrayOutputStream stackMap = new ByteArrayOutputStream();
+                    DataOutputStream frameOut = new DataOutputStream(stackMap);
+                    int previous = -1;
+                    for(int offset : this.frames){
+                        int delta = offset - previous - 1;
+                        if(delta < 64){
+                            frameOut.write(delta); //same_frame
+                        } else {
+                            frameOut.write(251); //same_frame_extended
+                            frameOut.writeShort(delta);
+                        }
+                        previous = offset;
+                    }
+                    frameOut.flush();
+
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeShort(this.access);
+                    out.writeShort(this.name);
+                    out.writeShort(this.descriptor);
+                    out.writeShort(1);
+
+                    int stackMapLength = this.frames.isEmpty() ? 0 : 8 + stackMap.size();
+                    out.writeShort(this.codeAttribute);
+                    out.writeInt(12 + this.length + stackMapLength);
+                    out.writeShort(maxStack);
+                    out.writeShort(maxLocals);
+                    out.writeInt(this.length);
+                    out.write(this.code, 0, this.length);
+                    out.writeShort(0);
+                    if(this.frames.isEmpty()){
+                        out.writeShort(0);
+                    } else {
+                        out.writeShort(1);
+                        out.writeShort(this.stackMapAttribute);
+                        out.writeInt(2 + stackMap.size());
+                        out.writeShort(this.frames.size());
+                        stackMap.writeTo(out);
+                    }
+                    out.flush();
+
+                    return bytes.toByteArray();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A rough benchmark of the wrapper compared to calling the Worker directly.
+     *
+     * Uses a {@link CountingWorker} so printing doesn't drown out the dispatch cost.
+     */
+    static class DispatchBenchmark {
+
+        private static final int ITERATIONS = 10000000;
+        private static final int ROUNDS = 5;
+
+        public static void main(String[] args) throws Exception {
+            final Part[] parts = new Part[]{new Part(), new Widget(), new Gadget()};
+
+            final CountingWorker direct = new CountingWorker();
+            final CountingWorker counter = new CountingWorker();
+            final Worker cached = DoubleDispatchWrapper.wrap(counter, Worker.class);
+            final Worker generated = DoubleDispatchWrapper.wrap(counter, Worker.class, DoubleDispatchWrapper.Mode.GENERATED);
+            final Worker uncached = UncachedWrapper.wrap(counter, Worker.class);
+
+            Timing.rounds(ROUNDS, new Timing.Round() {
+                @Override
+                public void run(int round) throws Exception {
+                    time("direct, mixed types", new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            for(int i=0;i<ITERATIONS;i++){
+                                assembleDirect(direct, parts[i % parts.length]);
+                            }
+                            return ITERATIONS;
+                        }
+                    });
+
+                    time("cached, one type", new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            for(int i=0;i<ITERATIONS;i++){
+                                cached.assemble(parts[1]);
+                            }
+                            return ITERATIONS;
+                        }
+                    });
+
+                    time("cached, mixed types", new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            for(int i=0;i<ITERATIONS;i++){
+                                cached.assemble(parts[i % parts.length]);
+                            }
+                            return ITERATIONS;
+                        }
+                    });
+
+                    time("generated, one type", new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            for(int i=0;i<ITERATIONS;i++){
+                                generated.assemble(parts[1]);
+                            }
+                            return ITERATIONS;
+                        }
+                    });
+
+                    time("generated, mixed types", new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            for(int i=0;i<ITERATIONS;i++){
+                                generated.assemble(parts[i % parts.length]);
+                            }
+                            return ITERATIONS;
+                        }
+                    });
+
+                    //Reflection on every call is slow enough that a tenth of the calls will do.
+                    time("uncached reflection", new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            for(int i=0;i<ITERATIONS / 10;i++){
+                                uncached.assemble(parts[i % parts.length]);
+                            }
+                            return ITERATIONS / 10;
+                        }
+                    });
+                }
+            });
+
+            //Print the counts, or the JIT could drop the calls that only add to them.
+            System.out.println("(counts: " + direct.count + ", " + counter.count + ")");
+        }
+
+        /**
+         * The hand-written dispatch the wrappers stand in for. The argument varies the same way it does
+         * in the wrapped runs, so the JIT can't fold the loop down to a single addition.
+         */
+        static void assembleDirect(CountingWorker worker, Part part){
+            if(part instanceof Widget){
+                worker.assemble((Widget) part);
+            }else if(part instanceof Gadget){
+                worker.assemble((Gadget) part);
+            }else{
+                worker.assemble(part);
+            }
+        }
+
+        private static void time(String label, Timing.Measured calls) throws Exception {
+            Timing.print(label, Timing.time(calls).nanosPer("call"));
+        }
+    }
+
+    /**
+     * The original wrapper -- reflection on every call. Only kept around for the benchmark.
+     */
+    static class UncachedWrapper {
+
+        @SuppressWarnings("unchecked")
+        static <T> T wrap(final T delegate, Class<T> proxyInterface){
+            return (T) Proxy.newProxyInstance(
+                UncachedWrapper.class.getClassLoader(),
+                new Class<?>[]{proxyInterface},
                 new InvocationHandler() {
                     @Override
                     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
@@ -52,7 +1079,6 @@ public class DoubleDispatch {
                             params[i] = args[i].getClass();
                         }
 
-                        //Adjust the method -- get the correct one for the correct params.
                         Method correctMethod = delegate.getClass().getDeclaredMethod(method.getName(), params);
 
                         return correctMethod.invoke(delegate, args);
@@ -61,6 +1087,25 @@ public class DoubleDispatch {
         }
     }
 
+    /**
+     * A quiet Worker that just counts what it's given.
+     */
+    static class CountingWorker implements Worker {
+        long count;
+
+        public void assemble(Part part) {
+            count++;
+        }
+
+        public void assemble(Widget widget) {
+            count += 2;
+        }
+
+        public void assemble(Gadget gadget) {
+            count += 3;
+        }
+    }
+
     static class Part {}
     static class Widget extends Part {}
     static class Gadget extends Part {}
@@ -1,23 +1,75 @@
 package patterns.momento;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.DocumentFilter;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.UndoableEdit;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.event.KeyAdapter;
-import java.awt.event.KeyEvent;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.Stack;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * Momento Pattern Demo.
  *
  * Press the 'Undo' button to undo the last text change.
+ *
+ * Pass a directory as the first argument to keep the text in a journal there,
+ * so it comes back after a restart.
  */
 public class Memento {
 
+    private static final int JOURNAL_CAPACITY = 16 * 1024 * 1024;
+    private static final long JOURNAL_FLUSH_MILLIS = 200;
+
     public static void main(String[] args) throws IOException {
-        EditorCaretaker.createAndShowGUI();
+        MomentoJournal journal = null;
+        if(args.length > 0){
+            journal = MomentoJournal.open(Paths.get(args[0]), JOURNAL_CAPACITY, JOURNAL_FLUSH_MILLIS);
+
+            final MomentoJournal toClose = journal;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        toClose.close();
+                    } catch (IOException e) {
+                        System.err.println("Error closing the journal: " + e.getMessage());
+                    }
+                }
+            }));
+        }
+
+        EditorCaretaker.createAndShowGUI(journal);
     }
 
     /**
@@ -25,17 +77,93 @@ public class Memento {
      */
     static class EditorOrgininator extends JTextArea {
 
+        private EditListener editListener;
+
+        private boolean restoring;
+
         EditorOrgininator(int offs, int len){
             super(offs, len);
+            ((AbstractDocument) this.getDocument()).setDocumentFilter(new EditRecorder());
         }
 
+        @Override
+        protected Document createDefaultModel() {
+            return new RopeDocument();
+        }
+
+        /**
+         * O(1) -- the Momento just keeps the current Rope.
+         */
         EditorMomento save(){
-            return new EditorMomento(this.getText());
+            return new EditorMomento(((RopeDocument) this.getDocument()).snapshot());
         }
 
+        /**
+         * Swap the saved Rope back into the Document. Listeners on the Document are kept.
+         */
         void restore(EditorMomento momento){
-            this.setText(momento.getState());
+            ((RopeDocument) this.getDocument()).setRope(momento.getState());
+            this.setCaretPosition(0);
+        }
+
+        /**
+         * Undo a single edit by applying its inverse.
+         */
+        void restore(EditMomento momento){
+            this.restoring = true;
+            try {
+                ((AbstractDocument) this.getDocument()).replace(
+                        momento.getOffset(), momento.getInserted().length(), momento.getRemoved(), null);
+                this.setCaretPosition(momento.getOffset() + momento.getRemoved().length());
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                this.restoring = false;
+            }
         }
+
+        void setEditListener(EditListener editListener) {
+            this.editListener = editListener;
+        }
+
+        private void edited(int offset, String removed, String inserted){
+            if(! this.restoring && this.editListener != null && (removed.length() > 0 || inserted.length() > 0)){
+                this.editListener.edited(new EditMomento(offset, removed, inserted));
+            }
+        }
+
+        /**
+         * Sees every change before it hits the Document, so the removed text can still be read.
+         */
+        private class EditRecorder extends DocumentFilter {
+
+            @Override
+            public void insertString(FilterBypass fb, int offset, String string, AttributeSet attr) throws BadLocationException {
+                fb.insertString(offset, string, attr);
+                edited(offset, "", string);
+            }
+
+            @Override
+            public void remove(FilterBypass fb, int offset, int length) throws BadLocationException {
+                String removed = fb.getDocument().getText(offset, length);
+                fb.remove(offset, length);
+                edited(offset, removed, "");
+            }
+
+            @Override
+            public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attrs) throws BadLocationException {
+                String removed = fb.getDocument().getText(offset, length);
+                fb.replace(offset, length, text, attrs);
+                edited(offset, removed, (text == null) ? "" : text);
+            }
+        }
+    }
+
+    /**
+     * Told about each edit made to the Originator.
+     */
+    interface EditListener {
+        void edited(EditMomento momento);
     }
 
     /**
@@ -43,41 +171,997 @@ public class Memento {
      */
     static class EditorMomento {
 
-        String state;
+        Rope state;
 
-        EditorMomento(String state){
+        EditorMomento(Rope state){
             this.state = state;
         }
 
-        String getState() {
+        Rope getState() {
             return state;
         }
 
-        void setState(String state) {
+        void setState(Rope state) {
             this.state = state;
         }
     }
 
+    /**
+     * An immutable string stored as a balanced tree of small chunks.
+     *
+     * An edit copies only the path from the root down to the chunks it touches and shares
+     * everything else with the old version, so keeping old versions around is cheap.
+     */
+    static final class Rope {
+
+        static final Rope EMPTY = new Rope("");
+
+        private static final int LEAF_SIZE = 256;
+
+        private final String leaf;
+        private final Rope left;
+        private final Rope right;
+        private final int length;
+        private final int height;
+
+        private Rope(String leaf){
+            this.leaf = leaf;
+            this.left = null;
+            this.right = null;
+            this.length = leaf.length();
+            this.height = 0;
+        }
+
+        private Rope(Rope left, Rope right){
+            this.leaf = null;
+            this.left = left;
+            this.right = right;
+            this.length = left.length + right.length;
+            this.height = Math.max(left.height, right.height) + 1;
+        }
+
+        static Rope of(CharSequence text){
+            return of(text, 0, text.length());
+        }
+
+        private static Rope of(CharSequence text, int start, int end){
+            if(end - start <= LEAF_SIZE){
+                return (start == end) ? EMPTY : new Rope(text.subSequence(start, end).toString());
+            }
+            int middle = (start + end) >>> 1;
+            return new Rope(of(text, start, middle), of(text, middle, end));
+        }
+
+        int length(){
+            return this.length;
+        }
+
+        Rope insert(int index, String text){
+            return this.insert(index, of(text));
+        }
+
+        Rope insert(int index, Rope text){
+            return concat(concat(this.prefix(index), text), this.suffix(index));
+        }
+
+        Rope delete(int start, int end){
+            return concat(this.prefix(start), this.suffix(end));
+        }
+
+        /**
+         * @return the first end characters
+         */
+        Rope prefix(int end){
+            if(end <= 0){
+                return EMPTY;
+            }
+            if(end >= this.length){
+                return this;
+            }
+            if(this.leaf != null){
+                return new Rope(this.leaf.substring(0, end));
+            }
+            if(end <= this.left.length){
+                return this.left.prefix(end);
+            }
+            return concat(this.left, this.right.prefix(end - this.left.length));
+        }
+
+        /**
+         * @return everything from start on
+         */
+        Rope suffix(int start){
+            if(start <= 0){
+                return this;
+            }
+            if(start >= this.length){
+                return EMPTY;
+            }
+            if(this.leaf != null){
+                return new Rope(this.leaf.substring(start));
+            }
+            if(start >= this.left.length){
+                return this.right.suffix(start - this.left.length);
+            }
+            return concat(this.left.suffix(start), this.right);
+        }
+
+        void getChars(int start, int end, char[] dst, int dstBegin){
+            if(start >= end){
+                return;
+            }
+            if(this.leaf != null){
+                this.leaf.getChars(start, end, dst, dstBegin);
+                return;
+            }
+            int split = this.left.length;
+            if(start < split){
+                this.left.getChars(start, Math.min(end, split), dst, dstBegin);
+            }
+            if(end > split){
+                this.right.getChars(Math.max(start, split) - split, end - split, dst, dstBegin + Math.max(0, split - start));
+            }
+        }
+
+        String substring(int start, int end){
+            char[] chars = new char[end - start];
+            this.getChars(start, end, chars, 0);
+            return new String(chars);
+        }
+
+        /**
+         * @return the index of the first c at or after from, or -1
+         */
+        int indexOf(char c, int from){
+            if(from >= this.length){
+                return -1;
+            }
+            if(this.leaf != null){
+                return this.leaf.indexOf(c, from);
+            }
+            if(from < this.left.length){
+                int index = this.left.indexOf(c, from);
+                if(index >= 0){
+                    return index;
+                }
+            }
+            int index = this.right.indexOf(c, Math.max(0, from - this.left.length));
+            return (index < 0) ? -1 : index + this.left.length;
+        }
+
+        @Override
+        public String toString() {
+            return this.substring(0, this.length);
+        }
+
+        /**
+         * Join two ropes, keeping the tree balanced the same way an AVL tree would.
+         */
+        private static Rope concat(Rope a, Rope b){
+            if(a.length == 0){
+                return b;
+            }
+            if(b.length == 0){
+                return a;
+            }
+            if(a.leaf != null && b.leaf != null && a.length + b.length <= LEAF_SIZE){
+                return new Rope(a.leaf + b.leaf);
+            }
+            if(a.height > b.height + 1){
+                return balance(a.left, concat(a.right, b));
+            }
+            if(b.height > a.height + 1){
+                return balance(concat(a, b.left), b.right);
+            }
+            return new Rope(a, b);
+        }
+
+        private static Rope balance(Rope l, Rope r){
+            if(l.height > r.height + 1){
+                if(l.left.height >= l.right.height){
+                    return new Rope(l.left, new Rope(l.right, r));
+                }
+                return new Rope(new Rope(l.left, l.right.left), new Rope(l.right.right, r));
+            }
+            if(r.height > l.height + 1){
+                if(r.right.height >= r.left.height){
+                    return new Rope(new Rope(l, r.left), r.right);
+                }
+                return new Rope(new Rope(l, r.left.left), new Rope(r.left.right, r.right));
+            }
+            return new Rope(l, r);
+        }
+    }
+
+    /**
+     * Document Content kept in a {@link Rope}, so a snapshot of it is just the current root.
+     *
+     * Like the other Content implementations it reports an extra '\n' at the very end,
+     * which isn't part of the Rope.
+     */
+    static class RopeContent implements AbstractDocument.Content {
+
+        private Rope text;
+
+        private final List<WeakReference<Mark>> marks = new ArrayList<WeakReference<Mark>>();
+        private int purgeAt = 64;
+
+        RopeContent(Rope text){
+            super();
+            this.text = text;
+        }
+
+        Rope getRope(){
+            return this.text;
+        }
+
+        @Override
+        public Position createPosition(int offset) throws BadLocationException {
+            if(offset < 0 || offset > this.length()){
+                throw new BadLocationException("Invalid position", offset);
+            }
+            if(this.marks.size() >= this.purgeAt){
+                this.purgeMarks();
+            }
+            Mark mark = new Mark(offset);
+            this.marks.add(new WeakReference<Mark>(mark));
+            return mark;
+        }
+
+        @Override
+        public int length() {
+            return this.text.length() + 1;
+        }
+
+        @Override
+        public UndoableEdit insertString(int where, String str) throws BadLocationException {
+            return this.insert(where, Rope.of(str));
+        }
+
+        /**
+         * Insert a whole Rope, sharing it rather than copying it in.
+         */
+        UndoableEdit insert(int where, Rope str) throws BadLocationException {
+            if(where < 0 || where > this.text.length()){
+                throw new BadLocationException("Invalid insert", this.length());
+            }
+            this.text = this.text.insert(where, str);
+
+            //Marks at zero stay put, the same as StringContent.
+            int from = Math.max(where, 1);
+            for(WeakReference<Mark> ref : this.marks){
+                Mark mark = ref.get();
+                if(mark != null && mark.offset >= from){
+                    mark.offset += str.length();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+            if(where < 0 || where + nitems > this.text.length()){
+                throw new BadLocationException("Invalid remove", this.length());
+            }
+            this.text = this.text.delete(where, where + nitems);
+
+            for(WeakReference<Mark> ref : this.marks){
+                Mark mark = ref.get();
+                if(mark != null){
+                    if(mark.offset >= where + nitems){
+                        mark.offset -= nitems;
+                    } else if(mark.offset > where){
+                        mark.offset = where;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String getString(int where, int len) throws BadLocationException {
+            Segment segment = new Segment();
+            this.getChars(where, len, segment);
+            return segment.toString();
+        }
+
+        @Override
+        public void getChars(int where, int len, Segment txt) throws BadLocationException {
+            if(where < 0 || len < 0 || where + len > this.length()){
+                throw new BadLocationException("Invalid location", this.length());
+            }
+            char[] chars = new char[len];
+            int end = Math.min(where + len, this.text.length());
+            this.text.getChars(where, end, chars, 0);
+            if(where + len > this.text.length()){
+                chars[len - 1] = '\n';
+            }
+            txt.array = chars;
+            txt.offset = 0;
+            txt.count = len;
+        }
+
+        private void purgeMarks(){
+            Iterator<WeakReference<Mark>> i = this.marks.iterator();
+            while(i.hasNext()){
+                if(i.next().get() == null){
+                    i.remove();
+                }
+            }
+            this.purgeAt = Math.max(64, this.marks.size() * 2);
+        }
+
+        private static class Mark implements Position {
+            private int offset;
+
+            Mark(int offset){
+                this.offset = offset;
+            }
+
+            @Override
+            public int getOffset() {
+                return this.offset;
+            }
+        }
+    }
+
+    /**
+     * A PlainDocument over a {@link RopeContent}.
+     */
+    static class RopeDocument extends PlainDocument {
+
+        private static final long serialVersionUID = 1L;
+
+        RopeDocument(){
+            this(Rope.EMPTY);
+        }
+
+        /**
+         * Start out with the given text, sharing the Rope rather than copying it in.
+         */
+        RopeDocument(Rope text){
+            super(new RopeContent(text));
+            if(text.length() > 0){
+                this.writeLock();
+                try {
+                    this.replaceLines(null, text);
+                } finally {
+                    this.writeUnlock();
+                }
+            }
+        }
+
+        /**
+         * @return the current text -- O(1), nothing is copied
+         */
+        Rope snapshot(){
+            return ((RopeContent) this.getContent()).getRope();
+        }
+
+        /**
+         * Swap in different text, keeping this Document and everything listening to it.
+         *
+         * Listeners see the old text removed and then the new text inserted, the same as if
+         * it had been replaced by hand. The new Rope is shared, not copied.
+         */
+        void setRope(Rope text){
+            this.writeLock();
+            try {
+                RopeContent content = (RopeContent) this.getContent();
+                int length = content.getRope().length();
+                if(length > 0){
+                    DefaultDocumentEvent removal = new DefaultDocumentEvent(0, length, DocumentEvent.EventType.REMOVE);
+                    content.remove(0, length);
+                    this.replaceLines(removal, Rope.EMPTY);
+                    removal.end();
+                    this.fireRemoveUpdate(removal);
+                }
+                if(text.length() > 0){
+                    DefaultDocumentEvent insertion = new DefaultDocumentEvent(0, text.length(), DocumentEvent.EventType.INSERT);
+                    content.insert(0, text);
+                    this.replaceLines(insertion, text);
+                    insertion.end();
+                    this.fireInsertUpdate(insertion);
+                }
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                this.writeUnlock();
+            }
+        }
+
+        /**
+         * Split the root up at each newline of the text, noting the change on the event if there is one.
+         */
+        private void replaceLines(DefaultDocumentEvent event, Rope text){
+            List<Element> lines = new ArrayList<Element>();
+            BranchElement root = (BranchElement) this.getDefaultRootElement();
+
+            int start = 0;
+            int newline;
+            while((newline = text.indexOf('\n', start)) >= 0){
+                lines.add(this.createLeafElement(root, null, start, newline + 1));
+                start = newline + 1;
+            }
+            lines.add(this.createLeafElement(root, null, start, text.length() + 1));
+
+            Element[] removed = new Element[root.getElementCount()];
+            for(int i=0;i<removed.length;i++){
+                removed[i] = root.getElement(i);
+            }
+            Element[] added = lines.toArray(new Element[lines.size()]);
+            root.replace(0, removed.length, added);
+            if(event != null){
+                event.addEdit(new ElementEdit(root, 0, removed, added));
+            }
+        }
+    }
+
+    /**
+     * A Momento of just one edit -- where it happened, the text removed and the text inserted.
+     *
+     * Unlike {@link EditorMomento} this doesn't copy the whole document, so the undo
+     * history grows with the size of the edits instead of the size of the text.
+     */
+    static class EditMomento {
+
+        private final int offset;
+        private final String removed;
+        private final String inserted;
+
+        EditMomento(int offset, String removed, String inserted){
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+
+        String getRemoved() {
+            return removed;
+        }
+
+        String getInserted() {
+            return inserted;
+        }
+
+        /**
+         * @return the edit that undoes this one
+         */
+        EditMomento inverse() {
+            return new EditMomento(this.offset, this.inserted, this.removed);
+        }
+
+        /**
+         * @return whether this edit typed, backspaced or deleted just one character
+         */
+        boolean isSingleCharacter() {
+            return this.removed.length() + this.inserted.length() == 1;
+        }
+
+        /**
+         * Roughly how much memory this Momento holds on to.
+         */
+        long sizeInBytes() {
+            return 64 + 2L * (this.removed.length() + this.inserted.length());
+        }
+
+        /**
+         * Combine this edit with the one that came right after it, if they are one contiguous
+         * run of typing, backspacing or deleting. Only single-character edits are merged, so a
+         * paste or a cut always stays a group of its own.
+         *
+         * @return the combined edit, or null if they can't be combined
+         */
+        EditMomento merge(EditMomento next){
+            if(! next.isSingleCharacter()){
+                return null;
+            }
+            int end = this.offset + this.inserted.length();
+
+            boolean nextIsInsert = next.removed.isEmpty();
+            boolean nextIsRemove = next.inserted.isEmpty();
+
+            if(nextIsInsert && next.offset == end){
+                //Typing on past the end of what was inserted.
+                return new EditMomento(this.offset, this.removed, this.inserted + next.inserted);
+            }
+            if(nextIsRemove && next.offset >= this.offset && next.offset + next.removed.length() == end){
+                //Backspacing over what was just inserted.
+                return new EditMomento(this.offset, this.removed, this.inserted.substring(0, next.offset - this.offset));
+            }
+            if(nextIsRemove && this.inserted.isEmpty()){
+                if(next.offset + next.removed.length() == this.offset){
+                    //Backspacing further back.
+                    return new EditMomento(next.offset, next.removed + this.removed, "");
+                }
+                if(next.offset == this.offset){
+                    //Deleting forward.
+                    return new EditMomento(this.offset, this.removed + next.removed, "");
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Where the Caretaker keeps its Momentos.
+     *
+     * Runs of single-character edits are merged into one undo group, until there is a pause
+     * longer than the gap or a new word is started. The groups sit in a ring buffer, and the
+     * oldest are dropped once there are too many of them or they hold more than the byte budget.
+     *
+     * Not thread safe -- it's only meant to be used from the Swing event thread.
+     */
+    static class UndoHistory {
+
+        private final EditMomento[] groups;
+        private final long maxBytes;
+        private final long gapMillis;
+
+        private int head;
+        private int size;
+        private long bytes;
+
+        private long lastEdit;
+        //Whether the newest group is a run of single-character edits that the next one may join.
+        private boolean typing;
+
+        UndoHistory(int maxGroups, long maxBytes, long gapMillis){
+            super();
+            if(maxGroups < 1){
+                throw new IllegalArgumentException("Need room for at least one undo group.");
+            }
+            this.groups = new EditMomento[maxGroups];
+            this.maxBytes = maxBytes;
+            this.gapMillis = gapMillis;
+        }
+
+        void record(EditMomento momento, long when){
+            EditMomento last = this.peek();
+            EditMomento merged = null;
+            if(last != null && this.typing && when - this.lastEdit <= this.gapMillis && ! this.startsWord(last, momento)){
+                merged = last.merge(momento);
+            }
+            this.lastEdit = when;
+            //A paste starts a group of its own, and the typing after it starts another.
+            this.typing = merged != null || momento.isSingleCharacter();
+
+            if(merged != null){
+                this.bytes += merged.sizeInBytes() - last.sizeInBytes();
+                this.groups[this.index(this.size - 1)] = merged;
+            } else {
+                if(this.size == this.groups.length){
+                    this.evictOldest();
+                }
+                this.groups[this.index(this.size)] = momento;
+                this.size++;
+                this.bytes += momento.sizeInBytes();
+            }
+
+            //A single huge paste can be over the budget by itself. Keep it anyway, so the
+            //last edit can always be undone.
+            while(this.bytes > this.maxBytes && this.size > 1){
+                this.evictOldest();
+            }
+        }
+
+        /**
+         * @return the most recent undo group, or null if there is nothing to undo
+         */
+        EditMomento pop(){
+            if(this.size == 0){
+                return null;
+            }
+            int index = this.index(this.size - 1);
+            EditMomento momento = this.groups[index];
+            this.groups[index] = null;
+            this.size--;
+            this.bytes -= momento.sizeInBytes();
+            //Never merge into a group that was undone and then typed after.
+            this.lastEdit = Long.MIN_VALUE / 2;
+            return momento;
+        }
+
+        boolean isEmpty(){
+            return this.size == 0;
+        }
+
+        int size(){
+            return this.size;
+        }
+
+        long sizeInBytes(){
+            return this.bytes;
+        }
+
+        private EditMomento peek(){
+            return (this.size == 0) ? null : this.groups[this.index(this.size - 1)];
+        }
+
+        private void evictOldest(){
+            this.bytes -= this.groups[this.head].sizeInBytes();
+            this.groups[this.head] = null;
+            this.head = this.index(1);
+            this.size--;
+        }
+
+        private int index(int i){
+            return (this.head + i) % this.groups.length;
+        }
+
+        /**
+         * A word boundary: whitespace typed straight after something that wasn't whitespace.
+         */
+        private boolean startsWord(EditMomento last, EditMomento next){
+            String lastText = last.getInserted();
+            String nextText = next.getInserted();
+            return nextText.length() == 1 && Character.isWhitespace(nextText.charAt(0))
+                    && lastText.length() > 0 && ! Character.isWhitespace(lastText.charAt(lastText.length() - 1));
+        }
+    }
+
+    /**
+     * An optional on-disk copy of the edit history, so the text survives a crash or restart.
+     *
+     * Every edit is appended to a journal file mapped into memory. Every so often the whole
+     * text is written out as a checkpoint and the journal starts over, so recovery is just
+     * the last checkpoint plus the few edits made after it.
+     *
+     * Callers only ever add to a queue. A single background thread writes the queued edits
+     * in batches and forces them to disk, so typing never waits on the disk.
+     *
+     * Crash safety comes from the write order. A record's body and the end marker after it
+     * are written before its length, and each record has a CRC that also covers the
+     * checkpoint generation. A torn record, or one left over from an older generation,
+     * never gets replayed.
+     */
+    static class MomentoJournal implements Closeable {
+
+        private static final int MAGIC = 0x4D4A524E;
+        private static final int HEADER_SIZE = 12;
+        private static final int RECORD_HEADER_SIZE = 8;
+
+        //Ask for a checkpoint once there are this many records since the last one, or one
+        //per this many bytes of checkpointed text if that's more. Replaying a record costs
+        //a few microseconds, so recovery stays in the milliseconds for any sensible text,
+        //while rewriting the text averages out to at most a kilobyte or so per edit.
+        private static final int MIN_CHECKPOINT_RECORDS = 1024;
+        private static final int CHECKPOINT_BYTES_PER_RECORD = 1024;
+
+        private final Path checkpointFile;
+        private final FileChannel channel;
+        private final MappedByteBuffer journal;
+
+        private final ConcurrentLinkedQueue<Object> pending = new ConcurrentLinkedQueue<Object>();
+        private final ScheduledExecutorService writer;
+
+        private final Rope recovered;
+
+        private long generation;
+        private boolean overflowed;
+        private int records;
+        private int recordLimit = MIN_CHECKPOINT_RECORDS;
+        private volatile boolean needsCheckpoint;
+
+        private MomentoJournal(Path directory, int capacity) throws IOException {
+            super();
+            Files.createDirectories(directory);
+            this.checkpointFile = directory.resolve("checkpoint");
+            this.channel = FileChannel.open(directory.resolve("journal"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.journal = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+            StringBuilder text = new StringBuilder();
+            this.generation = this.readCheckpoint(text);
+            this.recovered = this.replay(Rope.of(text));
+
+            //Start the next generation from what was recovered.
+            this.writeCheckpoint(this.recovered);
+
+            this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "momento-journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * Open (or create) the journal in a directory and recover whatever text it holds.
+         *
+         * @param capacity the size of the mapped journal file in bytes
+         * @param flushMillis how often queued edits are written out
+         */
+        static MomentoJournal open(Path directory, int capacity, long flushMillis) throws IOException {
+            final MomentoJournal journal = new MomentoJournal(directory, capacity);
+            journal.writer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    journal.drain();
+                }
+            }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+            return journal;
+        }
+
+        /**
+         * @return the text as of the last checkpoint plus everything journaled after it
+         */
+        Rope getRecovered() {
+            return recovered;
+        }
+
+        /**
+         * Queue an edit to be written. Never blocks.
+         */
+        void record(EditMomento momento){
+            this.pending.add(momento);
+        }
+
+        /**
+         * Queue a checkpoint of the full text. Everything recorded before this call must already
+         * be part of the text.
+         *
+         * Only the Momento's Rope is queued, which costs nothing to take. The text is encoded
+         * on the writer thread.
+         */
+        void checkpoint(EditorMomento momento){
+            this.needsCheckpoint = false;
+            this.pending.add(new Checkpoint(momento.getState()));
+        }
+
+        /**
+         * @return true once enough has been journaled since the last checkpoint that it's
+         * time to call {@link #checkpoint(EditorMomento)}
+         */
+        boolean needsCheckpoint(){
+            return this.needsCheckpoint;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.writer.shutdown();
+            try {
+                this.writer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this){
+                this.drain();
+                this.channel.close();
+            }
+        }
+
+        private synchronized void drain(){
+            if(! this.channel.isOpen()){
+                return;
+            }
+            try {
+                boolean written = false;
+                Object next;
+                while((next = this.pending.poll()) != null){
+                    if(next instanceof Checkpoint){
+                        this.writeCheckpoint(((Checkpoint) next).text);
+                    } else {
+                        this.append((EditMomento) next);
+                        written = true;
+                    }
+                }
+                if(written){
+                    this.journal.force();
+                }
+            } catch (IOException | UncheckedIOException e) {
+                //Throwing would cancel the writer for good. Edits keep going into the current
+                //generation, and the caretaker is asked for another checkpoint to retry with.
+                System.err.println("Error writing the journal: " + e.getMessage());
+                this.needsCheckpoint = true;
+            }
+        }
+
+        private void append(EditMomento momento){
+            if(this.overflowed){
+                //Edits past a full journal can't be replayed on their own -- wait for the checkpoint.
+                return;
+            }
+
+            byte[] removed = momento.getRemoved().getBytes(StandardCharsets.UTF_8);
+            byte[] inserted = momento.getInserted().getBytes(StandardCharsets.UTF_8);
+            int bodyLength = 12 + removed.length + inserted.length;
+
+            int start = this.journal.position();
+            if(start + RECORD_HEADER_SIZE + bodyLength + 4 > this.journal.capacity()){
+                this.overflowed = true;
+                this.needsCheckpoint = true;
+                return;
+            }
+
+            ByteBuffer body = this.journal.duplicate();
+            body.position(start + RECORD_HEADER_SIZE);
+            body.putInt(momento.getOffset());
+            body.putInt(removed.length);
+            body.put(removed);
+            body.putInt(inserted.length);
+            body.put(inserted);
+            body.putInt(0);
+
+            this.journal.putInt(start + 4, this.crc(start + RECORD_HEADER_SIZE, bodyLength));
+            this.journal.putInt(start, bodyLength);
+            this.journal.position(start + RECORD_HEADER_SIZE + bodyLength);
+
+            if(++this.records > this.recordLimit || this.journal.position() > this.journal.capacity() / 2){
+                this.needsCheckpoint = true;
+            }
+        }
+
+        /**
+         * Apply every intact record of the current generation to the text.
+         *
+         * The edits go into a Rope, so each one costs O(log n) however big the text is.
+         */
+        private Rope replay(Rope text){
+            this.journal.position(0);
+            if(this.journal.getInt(0) != MAGIC || this.journal.getLong(4) != this.generation){
+                return text;
+            }
+
+            int position = HEADER_SIZE;
+            while(position + RECORD_HEADER_SIZE <= this.journal.capacity()){
+                int bodyLength = this.journal.getInt(position);
+                if(bodyLength < 12 || position + RECORD_HEADER_SIZE + bodyLength > this.journal.capacity()
+                        || this.journal.getInt(position + 4) != this.crc(position + RECORD_HEADER_SIZE, bodyLength)){
+                    break;
+                }
+
+                ByteBuffer body = this.journal.duplicate();
+                body.position(position + RECORD_HEADER_SIZE);
+                int offset = body.getInt();
+                byte[] removed = new byte[body.getInt()];
+                body.get(removed);
+                byte[] inserted = new byte[body.getInt()];
+                body.get(inserted);
+
+                if(removed.length > 0){
+                    text = text.delete(offset, offset + new String(removed, StandardCharsets.UTF_8).length());
+                }
+                if(inserted.length > 0){
+                    text = text.insert(offset, new String(inserted, StandardCharsets.UTF_8));
+                }
+
+                position += RECORD_HEADER_SIZE + bodyLength;
+            }
+            return text;
+        }
+
+        /**
+         * @return the generation of the last checkpoint, with its text added to the builder
+         */
+        private long readCheckpoint(StringBuilder text) throws IOException {
+            if(! Files.exists(this.checkpointFile)){
+                return 0;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.checkpointFile));
+            if(buffer.remaining() < 20 || buffer.getInt() != MAGIC){
+                throw new IOException("Not a checkpoint file: " + this.checkpointFile);
+            }
+            long generation = buffer.getLong();
+            int crc = buffer.getInt();
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+
+            CRC32 check = new CRC32();
+            check.update(bytes);
+            if((int) check.getValue() != crc){
+                throw new IOException("Corrupt checkpoint file: " + this.checkpointFile);
+            }
+
+            text.append(new String(bytes, StandardCharsets.UTF_8));
+            return generation;
+        }
+
+        /**
+         * Write the text to a new checkpoint, swap it in, then start a fresh journal generation.
+         */
+        private void writeCheckpoint(Rope text) throws IOException {
+            long next = this.generation + 1;
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            ByteBuffer buffer = ByteBuffer.allocate(20 + bytes.length);
+            buffer.putInt(MAGIC).putLong(next).putInt((int) crc.getValue()).putInt(bytes.length).put(bytes);
+            buffer.flip();
+
+            Path temp = this.checkpointFile.resolveSibling("checkpoint.tmp");
+            FileChannel out = FileChannel.open(temp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                while(buffer.hasRemaining()){
+                    out.write(buffer);
+                }
+                out.force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(temp, this.checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            //A crash before this point leaves the old journal, which no longer matches the generation.
+            this.generation = next;
+            this.journal.putInt(HEADER_SIZE, 0);
+            this.journal.putLong(4, next);
+            this.journal.putInt(0, MAGIC);
+            this.journal.position(HEADER_SIZE);
+            this.journal.force();
+
+            this.overflowed = false;
+            this.records = 0;
+            this.recordLimit = Math.max(MIN_CHECKPOINT_RECORDS, bytes.length / CHECKPOINT_BYTES_PER_RECORD);
+        }
+
+        private int crc(int start, int length){
+            CRC32 crc = new CRC32();
+            ByteBuffer generation = ByteBuffer.allocate(8).putLong(this.generation);
+            generation.flip();
+            crc.update(generation);
+
+            ByteBuffer body = this.journal.duplicate();
+            body.position(start).limit(start + length);
+            crc.update(body);
+            return (int) crc.getValue();
+        }
+
+        private static class Checkpoint {
+            private final Rope text;
+
+            Checkpoint(Rope text){
+                this.text = text;
+            }
+        }
+    }
+
     /**
      * The Caretaker.
      */
     static class EditorCaretaker extends JPanel {
-        private Stack<EditorMomento> states = new Stack<EditorMomento>();
+        private static final int MAX_UNDO_GROUPS = 1000;
+        private static final long MAX_UNDO_BYTES = 4 * 1024 * 1024;
+        private static final long UNDO_GAP_MILLIS = 1000;
+
+        private UndoHistory states = new UndoHistory(MAX_UNDO_GROUPS, MAX_UNDO_BYTES, UNDO_GAP_MILLIS);
 
         protected EditorOrgininator editorOrgininator;
 
+        private MomentoJournal journal;
+
         public EditorCaretaker() {
+            this(null);
+        }
+
+        /**
+         * @param journal where to persist the edits, or null to keep them in memory only
+         */
+        public EditorCaretaker(MomentoJournal journal) {
             super(new GridBagLayout());
+            this.journal = journal;
             this.build();
         }
 
         public void build() {
             editorOrgininator = new EditorOrgininator(5, 20);
             editorOrgininator.setEditable(true);
-            editorOrgininator.addKeyListener(new KeyAdapter() {
+            if(journal != null){
+                editorOrgininator.restore(new EditorMomento(journal.getRecovered()));
+            }
+            editorOrgininator.setEditListener(new EditListener() {
                 @Override
-                public void keyTyped(KeyEvent e) {
-                    states.push(editorOrgininator.save());
+                public void edited(EditMomento momento) {
+                    states.record(momento, System.currentTimeMillis());
+                    journal(momento);
                 }
             });
 
@@ -96,8 +1180,10 @@ public class Memento {
             undoButton.addActionListener(new ActionListener() {
 
                 public void actionPerformed(ActionEvent e){
-                    if(! states.empty()){
-                        editorOrgininator.restore(states.pop());
+                    if(! states.isEmpty()){
+                        EditMomento momento = states.pop();
+                        editorOrgininator.restore(momento);
+                        journal(momento.inverse());
                     }
                 }
             });
@@ -105,14 +1191,23 @@ public class Memento {
             this.add(undoButton);
         }
 
+        private void journal(EditMomento momento){
+            if(journal != null){
+                journal.record(momento);
+                if(journal.needsCheckpoint()){
+                    journal.checkpoint(editorOrgininator.save());
+                }
+            }
+        }
+
         /**
          * Swing... never thought I'd see you again...
          */
-        private static void createAndShowGUI() {
+        private static void createAndShowGUI(MomentoJournal journal) {
             JFrame frame = new JFrame("Momento Demo");
             frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
             frame.setLocationRelativeTo(null);
-            frame.add(new EditorCaretaker());
+            frame.add(new EditorCaretaker(journal));
 
             //Display
             frame.pack();
@@ -1,24 +1,53 @@
 package patterns.mvc;
 
+import patterns.benchmark.Timing;
+
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import java.awt.*;
-import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Observable;
-import java.util.Observer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
 
 /**
  * MVC Pattern Demo.
  */
 public class Mvc {
 
+    private static final int HISTORY_SIZE = 1024;
+    private static final long HISTORY_WINDOW_SECONDS = 10;
+
     public static void main(String[] args) {
         Model model = new DefaultModel();
         Controller controller = new DefaultController(model);
 
+        //Keep a history of the levels too, and sum up the last few seconds of it on the way out.
+        final LevelHistory history = new LevelHistory(HISTORY_SIZE, TimeUnit.SECONDS.toNanos(HISTORY_WINDOW_SECONDS));
+        model.addListener(history);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                System.out.printf("Last %d seconds: %d levels, min %d, mean %.1f, max %d%n",
+                        HISTORY_WINDOW_SECONDS, history.count(0), history.min(0), history.mean(0), history.max(0));
+            }
+        }));
+
         //Use two Views with the same Model and Controller to
         //see how they all interact with each other.
 
@@ -37,14 +66,24 @@ public class Mvc {
     interface Model {
         int getLevel();
         void setLevel(int newLevel);
-        void addObserver(Observer o);
+        void addListener(LevelListener listener);
+        void removeListener(LevelListener listener);
+    }
+
+    /**
+     * Told when the level of a Model changes.
+     */
+    interface LevelListener {
+        void levelChanged(int newLevel);
     }
 
     /**
      * A default implementation of the Model
      */
-    static class DefaultModel extends Observable implements Model {
-        private int level;
+    static class DefaultModel implements Model {
+        private volatile int level;
+
+        private final LevelListeners listeners = new LevelListeners();
 
         @Override
         public int getLevel() {
@@ -54,8 +93,378 @@ public class Mvc {
         @Override
         public void setLevel(int level) {
             this.level = level;
-            this.setChanged();
-            this.notifyObservers();
+            this.listeners.fire(level);
+        }
+
+        @Override
+        public void addListener(LevelListener listener) {
+            this.listeners.add(listener);
+        }
+
+        @Override
+        public void removeListener(LevelListener listener) {
+            this.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * The listeners of a Model, kept in a copy-on-write array.
+     *
+     * Adding and removing copy the array, which is rare. Firing just reads the current
+     * array, so notifying takes no lock, unlike java.util.Observable.
+     */
+    static class LevelListeners {
+
+        private static final LevelListener[] NONE = new LevelListener[0];
+
+        private volatile LevelListener[] listeners = NONE;
+
+        synchronized void add(LevelListener listener){
+            LevelListener[] updated = Arrays.copyOf(this.listeners, this.listeners.length + 1);
+            updated[updated.length - 1] = listener;
+            this.listeners = updated;
+        }
+
+        synchronized void remove(LevelListener listener){
+            LevelListener[] current = this.listeners;
+            for(int i=0;i<current.length;i++){
+                if(current[i] == listener){
+                    LevelListener[] updated = new LevelListener[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    this.listeners = updated;
+                    return;
+                }
+            }
+        }
+
+        void fire(int level){
+            for(LevelListener listener : this.listeners){
+                listener.levelChanged(level);
+            }
+        }
+    }
+
+    /**
+     * Hands changes to a listener on another Executor, dropping the ones it's too slow for.
+     *
+     * Only the latest level is kept, and at most one delivery is waiting at a time. A
+     * listener that falls behind skips straight to the newest level instead of working
+     * through every one in between.
+     */
+    static class CoalescingListener implements LevelListener {
+
+        private final LevelListener target;
+        private final Executor executor;
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile int latest;
+
+        private final Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                //Reset before reading latest. A level set after the reset either shows up in
+                //this read or schedules one more delivery, so the target never ends up stale.
+                scheduled.set(false);
+                target.levelChanged(latest);
+            }
+        };
+
+        CoalescingListener(LevelListener target, Executor executor){
+            super();
+            this.target = target;
+            this.executor = executor;
+        }
+
+        @Override
+        public void levelChanged(int newLevel) {
+            this.latest = newLevel;
+            if(this.scheduled.compareAndSet(false, true)){
+                this.executor.execute(this.deliver);
+            }
+        }
+    }
+
+    /**
+     * Hands changes to a listener on the Swing event thread, at most once per display frame.
+     *
+     * However fast the level changes, a view gets a single invokeLater per frame carrying
+     * the latest level, so it does a fixed amount of work per frame and is only ever
+     * touched from the event thread.
+     */
+    static class FrameThrottledListener implements LevelListener {
+
+        static final long DEFAULT_FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+        private static final ScheduledExecutorService FRAMES =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "view-frames");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        private final LevelListener target;
+        private final long frameNanos;
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile int latest;
+        private volatile long lastPublished;
+
+        private final Runnable publish = new Runnable() {
+            @Override
+            public void run() {
+                //Open the next frame before reading latest. A level set from here on is either
+                //picked up below or books the following frame, never dropped.
+                scheduled.set(false);
+                lastPublished = System.nanoTime();
+                target.levelChanged(latest);
+            }
+        };
+
+        private final Runnable publishLater = new Runnable() {
+            @Override
+            public void run() {
+                SwingUtilities.invokeLater(publish);
+            }
+        };
+
+        FrameThrottledListener(LevelListener target){
+            this(target, DEFAULT_FRAME_NANOS);
+        }
+
+        FrameThrottledListener(LevelListener target, long frameNanos){
+            super();
+            this.target = target;
+            this.frameNanos = frameNanos;
+            this.lastPublished = System.nanoTime() - frameNanos;
+        }
+
+        @Override
+        public void levelChanged(int newLevel) {
+            this.latest = newLevel;
+            if(this.scheduled.compareAndSet(false, true)){
+                long wait = this.lastPublished + this.frameNanos - System.nanoTime();
+                if(wait <= 0){
+                    SwingUtilities.invokeLater(this.publish);
+                } else {
+                    FRAMES.schedule(this.publishLater, wait, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps a history of levels: the last few (time, level) samples in a fixed ring, and
+     * the min, max and mean over one or more rolling time windows.
+     *
+     * Listen to any Model with one to add history to it. Everything is allocated up
+     * front, so memory stays the same however long it runs, and each window keeps its
+     * min and max in monotonic queues so a new sample costs O(1), amortized.
+     *
+     * Unlike the Model's own listener list this takes a lock: each sample is stamped and
+     * added under the history's monitor, so the times always go forward. Setting the level
+     * from several threads at once makes them queue up here for those few steps, which is
+     * fine for a slider and a reader. A Model set harder than that should hand levels to
+     * its history through a {@link CoalescingListener} and accept that some are skipped.
+     */
+    static class LevelHistory implements LevelListener {
+
+        private final LongSupplier clock;
+
+        private final long[] times;
+        private final int[] levels;
+        //How many samples have ever been recorded; the newest is at (count - 1) % capacity.
+        private long count;
+
+        private final Window[] windows;
+
+        /**
+         * @param capacity how many samples to keep; also caps how many a window can hold
+         * @param windowNanos the length of each window
+         */
+        LevelHistory(int capacity, long... windowNanos){
+            this(capacity, System::nanoTime, windowNanos);
+        }
+
+        LevelHistory(int capacity, LongSupplier clock, long... windowNanos){
+            super();
+            if(capacity <= 0){
+                throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+            }
+            this.clock = clock;
+            this.times = new long[capacity];
+            this.levels = new int[capacity];
+            this.windows = new Window[windowNanos.length];
+            for(int i=0;i<windowNanos.length;i++){
+                this.windows[i] = new Window(windowNanos[i], capacity);
+            }
+        }
+
+        @Override
+        public void levelChanged(int newLevel) {
+            this.record(newLevel);
+        }
+
+        /**
+         * Add a sample stamped with the current time. The clock is read under the lock, so
+         * racing callers can't record a later time ahead of an earlier one.
+         */
+        synchronized void record(int level){
+            long time = this.clock.getAsLong();
+            long seq = this.count;
+            //The sample about to be overwritten can't stay in any window.
+            for(Window window : this.windows){
+                window.makeRoom(seq);
+            }
+            int slot = (int) (seq % this.times.length);
+            this.times[slot] = time;
+            this.levels[slot] = level;
+            this.count++;
+            for(Window window : this.windows){
+                window.add(seq, level);
+                window.expire(time);
+            }
+        }
+
+        /**
+         * How many samples are kept, at most the capacity.
+         */
+        synchronized int size(){
+            return (int) Math.min(this.count, this.times.length);
+        }
+
+        /**
+         * Copy the newest samples, oldest first, into the given arrays.
+         *
+         * @return how many were copied
+         */
+        synchronized int copyRecent(long[] times, int[] levels){
+            int n = Math.min(Math.min(times.length, levels.length), this.size());
+            for(int i=0;i<n;i++){
+                int slot = (int) ((this.count - n + i) % this.times.length);
+                times[i] = this.times[slot];
+                levels[i] = this.levels[slot];
+            }
+            return n;
+        }
+
+        /**
+         * How many samples are in the window now.
+         */
+        synchronized int count(int window){
+            return (int) this.current(window).size();
+        }
+
+        /**
+         * The lowest level in the window, or 0 if it's empty.
+         */
+        synchronized int min(int window){
+            Window w = this.current(window);
+            return w.size() == 0 ? 0 : this.levelOf(w.minQueue[w.minHead]);
+        }
+
+        /**
+         * The highest level in the window, or 0 if it's empty.
+         */
+        synchronized int max(int window){
+            Window w = this.current(window);
+            return w.size() == 0 ? 0 : this.levelOf(w.maxQueue[w.maxHead]);
+        }
+
+        /**
+         * The mean level in the window, or NaN if it's empty.
+         */
+        synchronized double mean(int window){
+            Window w = this.current(window);
+            return w.size() == 0 ? Double.NaN : (double) w.sum / w.size();
+        }
+
+        private Window current(int window){
+            Window w = this.windows[window];
+            w.expire(this.clock.getAsLong());
+            return w;
+        }
+
+        private int levelOf(long seq){
+            return this.levels[(int) (seq % this.levels.length)];
+        }
+
+        private long timeOf(long seq){
+            return this.times[(int) (seq % this.times.length)];
+        }
+
+        /**
+         * One rolling window: the samples from 'first' up to the newest, their sum, and
+         * queues of sample numbers whose levels only go up (min) or down (max) from the
+         * head, so the head of each is the answer.
+         */
+        private final class Window {
+            private final long nanos;
+
+            private long first;
+            private long sum;
+
+            private final long[] minQueue;
+            private int minHead;
+            private int minSize;
+
+            private final long[] maxQueue;
+            private int maxHead;
+            private int maxSize;
+
+            Window(long nanos, int capacity){
+                this.nanos = nanos;
+                this.minQueue = new long[capacity];
+                this.maxQueue = new long[capacity];
+            }
+
+            long size(){
+                return count - this.first;
+            }
+
+            void makeRoom(long seq){
+                if(seq - this.first >= levels.length){
+                    this.drop();
+                }
+            }
+
+            void add(long seq, int level){
+                this.sum += level;
+                while(this.minSize > 0 && levelOf(this.minQueue[this.tail(this.minHead, this.minSize)]) >= level){
+                    this.minSize--;
+                }
+                this.minQueue[(this.minHead + this.minSize++) % this.minQueue.length] = seq;
+                while(this.maxSize > 0 && levelOf(this.maxQueue[this.tail(this.maxHead, this.maxSize)]) <= level){
+                    this.maxSize--;
+                }
+                this.maxQueue[(this.maxHead + this.maxSize++) % this.maxQueue.length] = seq;
+            }
+
+            void expire(long now){
+                while(this.first < count && now - timeOf(this.first) > this.nanos){
+                    this.drop();
+                }
+            }
+
+            private void drop(){
+                long seq = this.first++;
+                this.sum -= levelOf(seq);
+                if(this.minSize > 0 && this.minQueue[this.minHead] == seq){
+                    this.minHead = (this.minHead + 1) % this.minQueue.length;
+                    this.minSize--;
+                }
+                if(this.maxSize > 0 && this.maxQueue[this.maxHead] == seq){
+                    this.maxHead = (this.maxHead + 1) % this.maxQueue.length;
+                    this.maxSize--;
+                }
+            }
+
+            private int tail(int head, int size){
+                return (head + size - 1) % this.minQueue.length;
+            }
         }
     }
 
@@ -64,6 +473,11 @@ public class Mvc {
      */
     interface Controller {
         void changeLevel(int newLevel);
+
+        /**
+         * Change the level to each of the given levels in turn.
+         */
+        void changeLevels(int[] newLevels, int offset, int length);
     }
 
     /**
@@ -82,6 +496,292 @@ public class Mvc {
         public void changeLevel(int newLevel) {
             this.model.setLevel(newLevel);
         }
+
+        @Override
+        public void changeLevels(int[] newLevels, int offset, int length) {
+            for(int i=offset;i<offset + length;i++){
+                this.model.setLevel(newLevels[i]);
+            }
+        }
+    }
+
+    /**
+     * The levels of many Models, kept in one int array indexed by model id.
+     *
+     * A Model per object costs a header, a listener list and the padding around them. Here
+     * a model is just its slot in the array, about four bytes, and {@link #model(int)}
+     * hands out a light Model over a slot when one is wanted.
+     *
+     * Slots are read and written with acquire/release ordering, so a level written on one
+     * thread is seen by a reader on another without a lock.
+     */
+    static class ModelRegistry {
+
+        private static final VarHandle LEVELS = MethodHandles.arrayElementVarHandle(int[].class);
+
+        private final int[] levels;
+
+        private volatile Subscriptions subscriptions = Subscriptions.NONE;
+
+        ModelRegistry(int size){
+            super();
+            this.levels = new int[size];
+        }
+
+        int size(){
+            return this.levels.length;
+        }
+
+        int getLevel(int id){
+            return (int) LEVELS.getAcquire(this.levels, id);
+        }
+
+        void setLevel(int id, int level){
+            LEVELS.setRelease(this.levels, id, level);
+            this.subscriptions.fire(id, level);
+        }
+
+        /**
+         * Set the level of each ids[i] to values[i], then tell the subscribers.
+         */
+        void setLevels(int[] ids, int[] values){
+            if(ids.length != values.length){
+                throw new IllegalArgumentException(
+                        "Got " + ids.length + " ids but " + values.length + " values.");
+            }
+            for(int i=0;i<ids.length;i++){
+                LEVELS.setRelease(this.levels, ids[i], values[i]);
+            }
+
+            Subscriptions subscriptions = this.subscriptions;
+            if(subscriptions.all.length > 0){
+                for(int i=0;i<ids.length;i++){
+                    subscriptions.fire(ids[i], values[i]);
+                }
+            }
+        }
+
+        /**
+         * Tell the listener about changes to any model with an id from fromId up to,
+         * but not including, toId.
+         */
+        Subscription subscribe(int fromId, int toId, SlotListener listener){
+            if(fromId < 0 || toId > this.levels.length || fromId >= toId){
+                throw new IllegalArgumentException(
+                        "Bad range [" + fromId + ", " + toId + ") for " + this.levels.length + " models.");
+            }
+            Subscription subscription = new Subscription(fromId, toId, listener);
+            synchronized(this){
+                Subscription[] current = this.subscriptions.all;
+                int at = 0;
+                while(at < current.length && current[at].from <= fromId){
+                    at++;
+                }
+                Subscription[] updated = new Subscription[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, at);
+                updated[at] = subscription;
+                System.arraycopy(current, at, updated, at + 1, current.length - at);
+                this.subscriptions = new Subscriptions(updated);
+            }
+            return subscription;
+        }
+
+        synchronized void unsubscribe(Subscription subscription){
+            Subscription[] current = this.subscriptions.all;
+            for(int i=0;i<current.length;i++){
+                if(current[i] == subscription){
+                    Subscription[] updated = new Subscription[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    this.subscriptions = new Subscriptions(updated);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * A Model over one slot. It holds nothing but the registry and the id, so it's
+         * fine to make one whenever it's needed and throw it away after.
+         */
+        Model model(int id){
+            Objects.checkIndex(id, this.levels.length);
+            return new SlotModel(this, id);
+        }
+
+        /**
+         * A Controller that changes the level of one slot.
+         */
+        Controller controller(int id){
+            return new DefaultController(this.model(id));
+        }
+
+        /**
+         * Told when the level of a model in a subscribed range changes.
+         */
+        interface SlotListener {
+            void levelChanged(int id, int newLevel);
+        }
+
+        /**
+         * The subscriptions sorted by where their range starts, copied on every change.
+         *
+         * maxTo[i] is the furthest any of the first i + 1 ranges reaches, so finding who to
+         * tell about an id is a binary search plus a short walk back, not a scan of them all.
+         */
+        private static final class Subscriptions {
+
+            static final Subscriptions NONE = new Subscriptions(new Subscription[0]);
+
+            final Subscription[] all;
+            private final int[] from;
+            private final int[] maxTo;
+
+            Subscriptions(Subscription[] all){
+                this.all = all;
+                this.from = new int[all.length];
+                this.maxTo = new int[all.length];
+                int max = 0;
+                for(int i=0;i<all.length;i++){
+                    this.from[i] = all[i].from;
+                    max = Math.max(max, all[i].to);
+                    this.maxTo[i] = max;
+                }
+            }
+
+            void fire(int id, int level){
+                //Find the last range starting at or before the id, then walk back while
+                //anything before it could still reach the id.
+                int low = 0;
+                int high = this.from.length - 1;
+                while(low <= high){
+                    int mid = (low + high) >>> 1;
+                    if(this.from[mid] <= id){
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                for(int i=high;i>=0 && this.maxTo[i] > id;i--){
+                    Subscription subscription = this.all[i];
+                    if(subscription.to > id){
+                        subscription.listener.levelChanged(id, level);
+                    }
+                }
+            }
+        }
+
+        static final class Subscription {
+            private final int from;
+            private final int to;
+            private final SlotListener listener;
+
+            private Subscription(int from, int to, SlotListener listener){
+                this.from = from;
+                this.to = to;
+                this.listener = listener;
+            }
+        }
+
+        private static final class SlotModel implements Model {
+            private final ModelRegistry registry;
+            private final int id;
+
+            private SlotModel(ModelRegistry registry, int id){
+                this.registry = registry;
+                this.id = id;
+            }
+
+            @Override
+            public int getLevel() {
+                return this.registry.getLevel(this.id);
+            }
+
+            @Override
+            public void setLevel(int newLevel) {
+                this.registry.setLevel(this.id, newLevel);
+            }
+
+            @Override
+            public void addListener(LevelListener listener) {
+                this.registry.subscribe(this.id, this.id + 1, new SlotLevelListener(listener));
+            }
+
+            @Override
+            public void removeListener(LevelListener listener) {
+                for(Subscription subscription : this.registry.subscriptions.all){
+                    if(subscription.from == this.id && subscription.to == this.id + 1
+                            && subscription.listener instanceof SlotLevelListener
+                            && ((SlotLevelListener) subscription.listener).target == listener){
+                        this.registry.unsubscribe(subscription);
+                        return;
+                    }
+                }
+            }
+        }
+
+        private static final class SlotLevelListener implements SlotListener {
+            private final LevelListener target;
+
+            private SlotLevelListener(LevelListener target){
+                this.target = target;
+            }
+
+            @Override
+            public void levelChanged(int id, int newLevel) {
+                this.target.levelChanged(newLevel);
+            }
+        }
+    }
+
+    /**
+     * Measure bulk updates through a {@link ModelRegistry}.
+     */
+    static class ModelRegistryBenchmark {
+
+        private static final int MODELS = 4_000_000;
+        private static final int BATCH = 4096;
+        private static final int ROUNDS = 5;
+
+        public static void main(String[] args) throws Exception {
+            final ModelRegistry registry = new ModelRegistry(MODELS);
+
+            //One subscriber per block of 1024 models, as a view of part of the models would.
+            final long[] notified = new long[1];
+            for(int from=0;from<MODELS;from+=1024){
+                registry.subscribe(from, Math.min(from + 1024, MODELS), new ModelRegistry.SlotListener() {
+                    @Override
+                    public void levelChanged(int id, int newLevel) {
+                        notified[0]++;
+                    }
+                });
+            }
+
+            final Random random = new Random(42);
+            final int[] ids = new int[BATCH];
+            final int[] values = new int[BATCH];
+
+            Timing.rounds(ROUNDS, new Timing.Round() {
+                @Override
+                public void run(int round) throws Exception {
+                    notified[0] = 0;
+                    Timing.Result result = Timing.time(new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            for(int done=0;done<MODELS;done+=BATCH){
+                                for(int i=0;i<BATCH;i++){
+                                    ids[i] = random.nextInt(MODELS);
+                                    values[i] = i;
+                                }
+                                registry.setLevels(ids, values);
+                            }
+                            return MODELS;
+                        }
+                    });
+                    Timing.print("setLevels", String.format("%s, %,d notifications",
+                            result.perSecond("updates"), notified[0]));
+                }
+            });
+        }
     }
 
     /**
@@ -122,12 +822,12 @@ public class Mvc {
 
             this.getContentPane().add(panel);
 
-            this.model.addObserver(new Observer() {
+            this.model.addListener(new FrameThrottledListener(new LevelListener() {
                 @Override
-                public void update(Observable o, Object arg) {
-                    label.setText(Integer.toString(model.getLevel()));
+                public void levelChanged(int newLevel) {
+                    label.setText(Integer.toString(newLevel));
                 }
-            });
+            }));
 
             this.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
             this.setSize(400, 200);
@@ -150,30 +850,223 @@ public class Mvc {
         }
 
         void init() {
-            this.model.addObserver(new Observer() {
+            //Printing is slow, so when levels are piped in fast only print the latest ones.
+            Executor printer = Executors.newSingleThreadExecutor(new ThreadFactory() {
                 @Override
-                public void update(Observable o, Object arg) {
-                    System.out.println(model.getLevel());
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "command-line-view");
+                    thread.setDaemon(true);
+                    return thread;
                 }
             });
+            this.model.addListener(new CoalescingListener(new LevelListener() {
+                @Override
+                public void levelChanged(int newLevel) {
+                    System.out.println(newLevel);
+                }
+            }, printer));
 
-            final BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+            final LevelReader reader = new LevelReader(
+                    new FileInputStream(FileDescriptor.in).getChannel(), this.controller);
 
             new Thread(new Runnable(){
                 @Override
                 public void run() {
-                    while(true){
-                        try {
-                            controller.changeLevel(Integer.parseInt(br.readLine()));
-                        } catch (NumberFormatException e){
-                            System.err.println("Error parsing number: " + e.getMessage());
-                        } catch (IOException e) {
-                            throw new IllegalStateException(e);
-                        }
+                    try {
+                        reader.run();
+                    } catch (IOException e) {
+                        System.err.println("Error reading levels: " + e.getMessage());
                     }
                 }
             }).start();
 
         }
     }
+
+    /**
+     * Reads levels -- whitespace separated integers -- from a channel and hands them
+     * to a Controller in batches.
+     *
+     * The bytes are read into one reused buffer and the numbers are parsed straight out
+     * of it, so nothing is allocated per level. Whatever each read brings is handed on
+     * straight away, in batches of up to 4096.
+     */
+    static class LevelReader {
+
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private static final int BATCH_SIZE = 4096;
+
+        private final ReadableByteChannel channel;
+        private final Controller controller;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final int[] batch = new int[BATCH_SIZE];
+        private int batched;
+
+        private long line = 1;
+
+        LevelReader(ReadableByteChannel channel, Controller controller){
+            super();
+            this.channel = channel;
+            this.controller = controller;
+        }
+
+        /**
+         * Read until the end of the channel.
+         *
+         * @return how many levels were read
+         */
+        long run() throws IOException {
+            byte[] bytes = this.buffer.array();
+            long count = 0;
+
+            long value = 0;
+            boolean negative = false;
+            boolean inNumber = false;
+            boolean invalid = false;
+
+            int read;
+            while((read = this.channel.read(this.buffer)) >= 0){
+                int end = this.buffer.position();
+                for(int i=0;i<end;i++){
+                    byte b = bytes[i];
+                    if(b >= '0' && b <= '9'){
+                        value = value * 10 + (b - '0');
+                        inNumber = true;
+                        if(value > Integer.MAX_VALUE + 1L){
+                            invalid = true;
+                            value = 0;
+                        }
+                    } else if(b == ' ' || b == '\n' || b == '\r' || b == '\t'){
+                        if(invalid){
+                            this.error();
+                        } else if(inNumber){
+                            if(this.add(negative ? -value : value)){
+                                count++;
+                            }
+                        } else if(negative){
+                            this.error();
+                        }
+                        if(b == '\n'){
+                            this.line++;
+                        }
+                        value = 0;
+                        negative = false;
+                        inNumber = false;
+                        invalid = false;
+                    } else if(b == '-' && ! inNumber && ! negative){
+                        negative = true;
+                    } else {
+                        invalid = true;
+                    }
+                }
+                this.buffer.clear();
+
+                //Pass on what this read brought rather than wait for a full batch; a typed
+                //level arrives in a read of its own and shouldn't sit here until the next.
+                this.flush();
+            }
+
+            //The last number might not have anything after it.
+            if(invalid || (negative && ! inNumber)){
+                this.error();
+            } else if(inNumber && this.add(negative ? -value : value)){
+                count++;
+            }
+            this.flush();
+
+            return count;
+        }
+
+        private boolean add(long level){
+            if(level < Integer.MIN_VALUE || level > Integer.MAX_VALUE){
+                this.error();
+                return false;
+            }
+            this.batch[this.batched++] = (int) level;
+            if(this.batched == this.batch.length){
+                this.flush();
+            }
+            return true;
+        }
+
+        private void flush(){
+            if(this.batched > 0){
+                this.controller.changeLevels(this.batch, 0, this.batched);
+                this.batched = 0;
+            }
+        }
+
+        private void error(){
+            System.err.println("Error parsing number on line " + this.line);
+        }
+    }
+
+    /**
+     * Measure how fast a {@link LevelReader} gets levels to a Controller.
+     */
+    static class LevelReaderBenchmark {
+
+        private static final long TOTAL_BYTES = 512L * 1024 * 1024;
+        private static final int ROUNDS = 3;
+
+        public static void main(String[] args) throws Exception {
+            //A chunk of random levels, served over and over.
+            StringBuilder sb = new StringBuilder();
+            Random random = new Random(42);
+            while(sb.length() < 4 * 1024 * 1024){
+                sb.append(random.nextInt(2000) - 1000).append('\n');
+            }
+            final byte[] chunk = sb.toString().getBytes(StandardCharsets.US_ASCII);
+
+            Timing.rounds(ROUNDS, new Timing.Round() {
+                @Override
+                public void run(int round) throws Exception {
+                    DefaultModel model = new DefaultModel();
+                    final LevelReader reader = new LevelReader(new RepeatingChannel(chunk, TOTAL_BYTES), new DefaultController(model));
+
+                    Timing.Result result = Timing.time(new Timing.Measured() {
+                        @Override
+                        public long run() throws IOException {
+                            return reader.run();
+                        }
+                    });
+                    Timing.print("LevelReader", String.format("%s, %,d levels (last level %d)",
+                            result.perSecond("levels"), result.count(), model.getLevel()));
+                }
+            });
+        }
+
+        private static class RepeatingChannel implements ReadableByteChannel {
+            private final byte[] chunk;
+            private long remaining;
+            private int position;
+
+            RepeatingChannel(byte[] chunk, long total){
+                this.chunk = chunk;
+                this.remaining = total - total % chunk.length;
+            }
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if(this.remaining == 0){
+                    return -1;
+                }
+                int length = (int) Math.min(Math.min(dst.remaining(), this.chunk.length - this.position), this.remaining);
+                dst.put(this.chunk, this.position, length);
+                this.position = (this.position + length) % this.chunk.length;
+                this.remaining -= length;
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package patterns.mvp;
 
+import patterns.benchmark.Timing;
+
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -7,8 +9,18 @@ import java.awt.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * MVP (Passive) Pattern Demo.
@@ -17,7 +29,7 @@ public class MvpPassive {
 
     public static void main(String[] args) {
         Model model = new DefaultModel();
-        Presenter presenter = new DefaultPresenter(model);
+        Presenter presenter = new AsyncPresenter(model, AsyncPresenter.Overflow.DROP_OLDEST, 64);
         presenter.init();
     }
 
@@ -46,6 +58,20 @@ public class MvpPassive {
         void init();
     }
 
+    /**
+     * Makes the View for a Presenter, so a Presenter isn't tied to one kind of View.
+     */
+    interface ViewFactory {
+        View create(Presenter presenter);
+
+        ViewFactory SWING = new ViewFactory() {
+            @Override
+            public View create(Presenter presenter) {
+                return new SwingView(presenter);
+            }
+        };
+    }
+
     /**
      * A default implementation of the Model
      */
@@ -74,9 +100,13 @@ public class MvpPassive {
         private View view;
 
         DefaultPresenter(Model model){
+            this(model, ViewFactory.SWING);
+        }
+
+        DefaultPresenter(Model model, ViewFactory viewFactory){
             super();
             this.model = model;
-            this.view = new SwingView(this);
+            this.view = viewFactory.create(this);
         }
 
         @Override
@@ -96,6 +126,394 @@ public class MvpPassive {
         }
     }
 
+    /**
+     * A Presenter that does the Model work off the calling thread.
+     *
+     * Changes go into a bounded queue and are applied to the Model one at a time, in
+     * order, by a worker. When the queue is full the Overflow decides: drop the oldest
+     * change, or block the caller until there's room. The levels the Model ends up at are
+     * handed back to the View on the Swing event thread, latest first; if the View falls
+     * behind it skips to the newest level rather than queueing up every one.
+     */
+    static class AsyncPresenter implements Presenter {
+
+        enum Overflow {
+            /** Throw away the oldest waiting change. Never blocks, so safe on the event thread. */
+            DROP_OLDEST,
+            /** Wait for room. Use from threads that can afford to wait, not the event thread. */
+            BLOCK
+        }
+
+        private static final int BATCH_SIZE = 64;
+
+        private final Model model;
+        private final View view;
+        private final Overflow overflow;
+        private final Executor worker;
+        private final Executor ui;
+
+        private final LevelQueue queue;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final int[] batch = new int[BATCH_SIZE];
+
+        private final AtomicBoolean displaying = new AtomicBoolean();
+        private volatile int latest;
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private final Runnable display = new Runnable() {
+            @Override
+            public void run() {
+                //The level is read after the flag is down. A level queued from here on finds
+                //the flag down and posts one more display, so the view ends on the last level.
+                displaying.set(false);
+                view.setLevelDisplay(latest);
+            }
+        };
+
+        AsyncPresenter(Model model, Overflow overflow, int capacity){
+            this(model, ViewFactory.SWING, overflow, capacity);
+        }
+
+        AsyncPresenter(Model model, ViewFactory viewFactory, Overflow overflow, int capacity){
+            super();
+            this.model = model;
+            this.view = viewFactory.create(this);
+            this.overflow = overflow;
+            this.worker = Workers.EXECUTOR;
+            this.ui = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    SwingUtilities.invokeLater(command);
+                }
+            };
+            this.queue = new LevelQueue(capacity);
+        }
+
+        @Override
+        public void init(){
+            this.view.init();
+            this.model.addObserver(new Observer() {
+                @Override
+                public void update(Observable o, Object arg) {
+                    show(model.getLevel());
+                }
+            });
+        }
+
+        @Override
+        public void changeLevel(int newLevel) {
+            if(this.overflow == Overflow.BLOCK){
+                try {
+                    this.queue.put(newLevel);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } else {
+                this.queue.putDroppingOldest(newLevel);
+            }
+            if(this.draining.compareAndSet(false, true)){
+                this.worker.execute(this.drain);
+            }
+        }
+
+        /**
+         * How many changes have been thrown away because the queue was full.
+         */
+        long dropped(){
+            return this.queue.dropped();
+        }
+
+        private void drain(){
+            while(true){
+                int n = this.queue.take(this.batch);
+                if(n == 0){
+                    this.draining.set(false);
+                    //Something may have come in after the take but before the flag cleared.
+                    if(this.queue.isEmpty() || ! this.draining.compareAndSet(false, true)){
+                        return;
+                    }
+                    continue;
+                }
+                for(int i=0;i<n;i++){
+                    this.model.setLevel(this.batch[i]);
+                }
+            }
+        }
+
+        private void show(int level){
+            this.latest = level;
+            if(this.displaying.compareAndSet(false, true)){
+                this.ui.execute(this.display);
+            }
+        }
+
+        /**
+         * A bounded queue of levels in an int ring, so nothing is boxed.
+         */
+        private static final class LevelQueue {
+            private final int[] levels;
+            private int head;
+            private int size;
+            private long dropped;
+
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition notFull = this.lock.newCondition();
+
+            LevelQueue(int capacity){
+                if(capacity <= 0){
+                    throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+                }
+                this.levels = new int[capacity];
+            }
+
+            void put(int level) throws InterruptedException {
+                this.lock.lockInterruptibly();
+                try {
+                    while(this.size == this.levels.length){
+                        this.notFull.await();
+                    }
+                    this.add(level);
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+
+            void putDroppingOldest(int level){
+                this.lock.lock();
+                try {
+                    if(this.size == this.levels.length){
+                        this.head = (this.head + 1) % this.levels.length;
+                        this.size--;
+                        this.dropped++;
+                    }
+                    this.add(level);
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+
+            int take(int[] into){
+                this.lock.lock();
+                try {
+                    int n = Math.min(into.length, this.size);
+                    for(int i=0;i<n;i++){
+                        into[i] = this.levels[(this.head + i) % this.levels.length];
+                    }
+                    this.head = (this.head + n) % this.levels.length;
+                    this.size -= n;
+                    if(n > 0){
+                        this.notFull.signalAll();
+                    }
+                    return n;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+
+            boolean isEmpty(){
+                this.lock.lock();
+                try {
+                    return this.size == 0;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+
+            long dropped(){
+                this.lock.lock();
+                try {
+                    return this.dropped;
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+
+            private void add(int level){
+                this.levels[(this.head + this.size) % this.levels.length] = level;
+                this.size++;
+            }
+        }
+    }
+
+    /**
+     * Where Presenters run their Model work.
+     *
+     * On a JDK with virtual threads each task gets one; otherwise it's a pool of daemon
+     * threads that grows as needed and lets idle ones go.
+     */
+    static class Workers {
+
+        static final Executor EXECUTOR = create();
+
+        private static Executor create(){
+            try {
+                Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) virtual.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "presenter-worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A View with no display that records when each level reaches it.
+     *
+     * Levels are taken to be sequence numbers from 0 up to the capacity, which is how
+     * {@link LatencyDriver} sends them, so the time each was shown is kept by level.
+     */
+    static class HeadlessView implements View {
+
+        private final long[] shownAt;
+        private volatile int lastShown = -1;
+
+        HeadlessView(int capacity){
+            super();
+            this.shownAt = new long[capacity];
+        }
+
+        @Override
+        public void setLevelDisplay(int newLevel) {
+            long now = System.nanoTime();
+            if(newLevel >= 0 && newLevel < this.shownAt.length){
+                this.shownAt[newLevel] = now;
+            }
+            this.lastShown = newLevel;
+        }
+
+        @Override
+        public void init() {
+        }
+
+        /**
+         * When the level was shown, or 0 if it never was.
+         */
+        long shownAt(int level){
+            return this.shownAt[level];
+        }
+
+        int lastShown(){
+            return this.lastShown;
+        }
+    }
+
+    /**
+     * Drives a Presenter at a steady rate and reports how long levels take to get from
+     * Presenter.changeLevel to View.setLevelDisplay.
+     *
+     * Latency is measured from when each change was due to be sent, not when it actually
+     * went, so a Presenter that holds up its caller is charged for the changes that had to
+     * wait behind it. Levels a Presenter drops or skips aren't counted, but how many made
+     * it is reported alongside.
+     *
+     * Usage: LatencyDriver [sync|async|async-block] [count] [rate per second]...
+     */
+    static class LatencyDriver {
+
+        public static void main(String[] args) throws InterruptedException {
+            String kind = args.length > 0 ? args[0] : "async";
+            int count = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+            long[] rates = {1_000, 10_000, 100_000, 1_000_000};
+            if(args.length > 2){
+                rates = new long[args.length - 2];
+                for(int i=2;i<args.length;i++){
+                    rates[i - 2] = Long.parseLong(args[i]);
+                }
+            }
+
+            for(long rate : rates){
+                //A short warm up at the same rate first, then the measured run.
+                run(kind, Math.min(count, (int) Math.max(rate, 1_000)), rate, false);
+                run(kind, count, rate, true);
+            }
+        }
+
+        private static void run(String kind, int count, long rate, boolean report) throws InterruptedException {
+            final HeadlessView view = new HeadlessView(count);
+            ViewFactory viewFactory = new ViewFactory() {
+                @Override
+                public View create(Presenter presenter) {
+                    return view;
+                }
+            };
+            Presenter presenter;
+            if(kind.equals("sync")){
+                presenter = new DefaultPresenter(new DefaultModel(), viewFactory);
+            } else if(kind.equals("async")){
+                presenter = new AsyncPresenter(new DefaultModel(), viewFactory, AsyncPresenter.Overflow.DROP_OLDEST, 1024);
+            } else if(kind.equals("async-block")){
+                presenter = new AsyncPresenter(new DefaultModel(), viewFactory, AsyncPresenter.Overflow.BLOCK, 1024);
+            } else {
+                throw new IllegalArgumentException("Unknown presenter: " + kind);
+            }
+            presenter.init();
+
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            long[] dueAt = new long[count];
+            long start = System.nanoTime();
+            for(int level=0;level<count;level++){
+                long due = start + level * interval;
+                long wait;
+                while((wait = due - System.nanoTime()) > 0){
+                    if(wait > 50_000){
+                        LockSupport.parkNanos(wait - 50_000);
+                    }
+                }
+                dueAt[level] = due;
+                presenter.changeLevel(level);
+            }
+
+            //The last level always gets shown in the end; wait for it.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while(view.lastShown() != count - 1 && System.nanoTime() < deadline){
+                Thread.sleep(1);
+            }
+
+            long[] latencies = new long[count];
+            int shown = 0;
+            for(int level=0;level<count;level++){
+                long at = view.shownAt(level);
+                if(at != 0){
+                    latencies[shown++] = at - dueAt[level];
+                }
+            }
+            if(! report){
+                return;
+            }
+            Arrays.sort(latencies, 0, shown);
+            Timing.print(String.format("%s at %,d/sec", kind, rate), String.format(
+                    "%,d of %,d shown, p50 %s, p99 %s, p999 %s, max %s", shown, count,
+                    micros(percentile(latencies, shown, 0.50)),
+                    micros(percentile(latencies, shown, 0.99)),
+                    micros(percentile(latencies, shown, 0.999)),
+                    micros(shown == 0 ? 0 : latencies[shown - 1])));
+        }
+
+        private static long percentile(long[] sorted, int length, double p){
+            if(length == 0){
+                return 0;
+            }
+            return sorted[(int) Math.min(length - 1, Math.ceil(p * length) - 1)];
+        }
+
+        private static String micros(long nanos){
+            return String.format("%,.1fus", nanos / 1e3);
+        }
+    }
+
     /**
      * A Swing View implementation
      */
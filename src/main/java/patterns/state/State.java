@@ -1,16 +1,59 @@
 package patterns.state;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import patterns.benchmark.Timing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * State Pattern Demo.
  */
 public class State {
 
-    public static void main(String[] args){
+    public static void main(String[] args) throws InterruptedException {
         Context context = new Context();
         context.init();
+
+        //The scheduler's threads are daemons, so keep the demo running.
+        Thread.currentThread().join();
+    }
+
+    /**
+     * The scheduler all Contexts share by default.
+     *
+     * A Context is just a couple of scheduled tasks, so any number of them run on these
+     * few threads rather than needing threads of their own.
+     */
+    static class Schedulers {
+
+        static final ScheduledExecutorService SHARED = Executors.newScheduledThreadPool(
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "state-scheduler-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
     }
 
     /**
@@ -18,29 +61,965 @@ public class State {
      */
     static class Context {
 
-        private IState currentState = new NoAlert();
-        private IState offState = new RedAlert();
+        private final ScheduledExecutorService scheduler;
 
-        private void init(){
-            new Timer().scheduleAtFixedRate(new TimerTask(){
+        //The two States we swap between. 'current' only ever goes up, and its low bit says
+        //which one is current, so a swap is a single atomic increment that every thread sees.
+        private final IState[] states;
+        private final AtomicInteger current = new AtomicInteger();
+
+        //Where to record transitions and alerts, if anywhere.
+        private final StateMetrics metrics;
+        private volatile long enteredAt;
+
+        private ScheduledFuture<?> swapping;
+        private ScheduledFuture<?> alerting;
+
+        Context(){
+            this(Schedulers.SHARED, new NoAlert(), new RedAlert());
+        }
+
+        Context(ScheduledExecutorService scheduler, IState initialState, IState otherState){
+            this(scheduler, initialState, otherState, null);
+        }
+
+        /**
+         * @param metrics made with the initial and other States, in that order
+         */
+        Context(ScheduledExecutorService scheduler, IState initialState, IState otherState, StateMetrics metrics){
+            super();
+            this.scheduler = scheduler;
+            this.states = new IState[]{initialState, otherState};
+            this.metrics = metrics;
+        }
+
+        synchronized void init(){
+            this.enteredAt = System.nanoTime();
+            if(this.metrics != null){
+                this.metrics.entered(0);
+            }
+
+            this.swapping = this.scheduler.scheduleAtFixedRate(new Runnable(){
                 @Override
                 public void run() {
                     //swap States
-                    IState temp = currentState;
-                    currentState = offState;
-                    offState = temp;
+                    int now = current.incrementAndGet();
+                    if(metrics != null){
+                        long time = System.nanoTime();
+                        metrics.left((now - 1) & 1, time - enteredAt);
+                        metrics.entered(now & 1);
+                        enteredAt = time;
+                    }
                 }
-            }, 5000, 5000);
+            }, 5000, 5000, TimeUnit.MILLISECONDS);
 
-            new Timer().scheduleAtFixedRate(new TimerTask(){
+            this.alerting = this.scheduler.scheduleAtFixedRate(new Runnable(){
                 @Override
                 public void run() {
                     //print the alert every second
-                    currentState.alert();
+                    if(metrics == null){
+                        currentState().alert();
+                    } else {
+                        long start = System.nanoTime();
+                        currentState().alert();
+                        metrics.alerted(System.nanoTime() - start);
+                    }
+                }
+            }, 0, 1000, TimeUnit.MILLISECONDS);
+        }
+
+        IState currentState(){
+            return this.states[this.current.get() & 1];
+        }
+
+        /**
+         * Stop swapping and alerting.
+         */
+        synchronized void close(){
+            if(this.swapping != null){
+                this.swapping.cancel(false);
+                this.alerting.cancel(false);
+            }
+        }
+
+    }
+
+    /**
+     * What the load mains print each second: what's running, on how many threads, and the
+     * alerts so far.
+     */
+    static Timing.Progress alerts(final String running, final LongAdder calm, final LongAdder panicked){
+        return new Timing.Progress() {
+            @Override
+            public String report() {
+                return String.format("%s on %d live threads, %,d calm and %,d panicked alerts",
+                        running, Thread.activeCount(), calm.sum(), panicked.sum());
+            }
+        };
+    }
+
+    /**
+     * Runs many Contexts at once on the shared scheduler, to show they don't each need
+     * threads of their own.
+     */
+    static class ContextLoad {
+
+        public static void main(String[] args) throws InterruptedException {
+            int contexts = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+            long seconds = args.length > 1 ? Long.parseLong(args[1]) : 12;
+
+            final LongAdder calm = new LongAdder();
+            final LongAdder panicked = new LongAdder();
+            IState noAlert = new IState() {
+                @Override
+                public void alert() {
+                    calm.increment();
+                }
+            };
+            IState redAlert = new IState() {
+                @Override
+                public void alert() {
+                    panicked.increment();
+                }
+            };
+
+            StateMetrics metrics = new StateMetrics(noAlert, redAlert);
+
+            Context[] all = new Context[contexts];
+            for(int i=0;i<contexts;i++){
+                all[i] = new Context(Schedulers.SHARED, noAlert, redAlert, metrics);
+                all[i].init();
+            }
+
+            Timing.watch(seconds, alerts(String.format("%,d contexts", contexts), calm, panicked));
+
+            for(Context context : all){
+                context.close();
+            }
+            System.out.print(metrics.snapshot());
+        }
+    }
+
+    /**
+     * A hashed timing wheel: a ring of buckets, each a linked list of timeouts, with one
+     * thread moving round it a tick at a time.
+     *
+     * Scheduling just queues the timeout for the wheel thread to drop in its bucket, and
+     * cancelling just marks it, so both are O(1) however many timeouts are pending. A
+     * timeout more than one turn away waits out the extra turns in its bucket. Timeouts go
+     * off to the nearest tick, which is plenty for alert timers, and run on an Executor so
+     * slow tasks don't hold up the wheel.
+     */
+    static class TimingWheel {
+
+        static final TimingWheel SHARED = new TimingWheel(
+                TimeUnit.MILLISECONDS.toNanos(10), 1024, Schedulers.SHARED);
+
+        /**
+         * Something to do when a timeout goes off. The tag is whatever it was scheduled with.
+         */
+        interface Task {
+            void expired(Timeout timeout, long tag);
+        }
+
+        private final long tickNanos;
+        private final Bucket[] buckets;
+        private final int mask;
+        private final Executor executor;
+
+        private final long start = System.nanoTime();
+        private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+        private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+        //Only touched by the wheel thread.
+        private long tick;
+
+        /**
+         * @param tickNanos how far apart the ticks are
+         * @param size how many buckets, rounded up to a power of two
+         * @param executor what runs the timeouts
+         */
+        TimingWheel(long tickNanos, int size, Executor executor){
+            super();
+            this.tickNanos = tickNanos;
+            int buckets = Integer.highestOneBit(Math.max(1, size - 1) << 1);
+            this.buckets = new Bucket[buckets];
+            for(int i=0;i<buckets;i++){
+                this.buckets[i] = new Bucket();
+            }
+            this.mask = buckets - 1;
+            this.executor = executor;
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    turn();
+                }
+            }, "timing-wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Timeout schedule(Task task, long tag, long delay, TimeUnit unit){
+            return this.scheduleAt(task, tag, System.nanoTime() + unit.toNanos(delay));
+        }
+
+        /**
+         * Schedule for a System.nanoTime() deadline, which lets a repeating task schedule its
+         * next run from its last deadline so it doesn't drift.
+         */
+        Timeout scheduleAt(Task task, long tag, long deadline){
+            Timeout timeout = new Timeout(this, task, tag, deadline);
+            this.scheduled.add(timeout);
+            return timeout;
+        }
+
+        private void turn(){
+            while(true){
+                long next = this.start + (this.tick + 1) * this.tickNanos;
+                long wait;
+                while((wait = next - System.nanoTime()) > 0){
+                    LockSupport.parkNanos(wait);
+                }
+
+                this.removeCancelled();
+                this.addScheduled();
+                this.buckets[(int) (this.tick & this.mask)].expire(this.executor);
+                this.tick++;
+            }
+        }
+
+        private void addScheduled(){
+            Timeout timeout;
+            while((timeout = this.scheduled.poll()) != null){
+                if(timeout.state.get() != Timeout.PENDING){
+                    continue;
+                }
+                //Anything already due goes in the bucket about to be expired.
+                long ticks = Math.max(this.tick, Math.floorDiv(timeout.deadline - this.start, this.tickNanos));
+                timeout.rounds = (ticks - this.tick) / this.buckets.length;
+                this.buckets[(int) (ticks & this.mask)].add(timeout);
+            }
+        }
+
+        private void removeCancelled(){
+            Timeout timeout;
+            while((timeout = this.cancelled.poll()) != null){
+                if(timeout.bucket != null){
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+
+        /**
+         * A scheduled task, which can be cancelled until it goes off.
+         */
+        static final class Timeout implements Runnable {
+
+            private static final int PENDING = 0;
+            private static final int CANCELLED = 1;
+            private static final int EXPIRED = 2;
+
+            private final TimingWheel wheel;
+            private final Task task;
+            private final long tag;
+            private final long deadline;
+
+            private final AtomicInteger state = new AtomicInteger(PENDING);
+
+            //Only touched by the wheel thread.
+            private long rounds;
+            private Bucket bucket;
+            private Timeout previous;
+            private Timeout next;
+
+            private Timeout(TimingWheel wheel, Task task, long tag, long deadline){
+                this.wheel = wheel;
+                this.task = task;
+                this.tag = tag;
+                this.deadline = deadline;
+            }
+
+            long deadline(){
+                return this.deadline;
+            }
+
+            long tag(){
+                return this.tag;
+            }
+
+            /**
+             * @return true if this stopped it going off, false if it had already gone off or
+             * been cancelled
+             */
+            boolean cancel(){
+                if(this.state.compareAndSet(PENDING, CANCELLED)){
+                    this.wheel.cancelled.add(this);
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void run() {
+                this.task.expired(this, this.tag);
+            }
+        }
+
+        private static final class Bucket {
+            private Timeout head;
+            private Timeout tail;
+
+            void add(Timeout timeout){
+                timeout.bucket = this;
+                timeout.previous = this.tail;
+                if(this.tail == null){
+                    this.head = timeout;
+                } else {
+                    this.tail.next = timeout;
+                }
+                this.tail = timeout;
+            }
+
+            void remove(Timeout timeout){
+                if(timeout.previous == null){
+                    this.head = timeout.next;
+                } else {
+                    timeout.previous.next = timeout.next;
+                }
+                if(timeout.next == null){
+                    this.tail = timeout.previous;
+                } else {
+                    timeout.next.previous = timeout.previous;
+                }
+                timeout.bucket = null;
+                timeout.previous = null;
+                timeout.next = null;
+            }
+
+            void expire(Executor executor){
+                Timeout timeout = this.head;
+                while(timeout != null){
+                    Timeout next = timeout.next;
+                    if(timeout.rounds <= 0){
+                        this.remove(timeout);
+                        if(timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)){
+                            executor.execute(timeout);
+                        }
+                    } else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * A table of state transitions: for each state, which state each event leads to, and
+     * optionally a timeout after which it moves on by itself.
+     *
+     * States are numbered in the order they're added and events by their ordinal, so a
+     * lookup is an index into an int array.
+     */
+    static final class TransitionTable<E extends Enum<E>> {
+
+        private static final int NONE = -1;
+
+        private final IState[] states;
+        private final int events;
+        private final int[] onEvent;
+        private final long[] timeoutNanos;
+        private final int[] onTimeout;
+
+        private TransitionTable(IState[] states, int events, int[] onEvent, long[] timeoutNanos, int[] onTimeout){
+            this.states = states;
+            this.events = events;
+            this.onEvent = onEvent;
+            this.timeoutNanos = timeoutNanos;
+            this.onTimeout = onTimeout;
+        }
+
+        static <E extends Enum<E>> Builder<E> builder(Class<E> eventType){
+            return new Builder<E>(eventType);
+        }
+
+        IState state(int id){
+            return this.states[id];
+        }
+
+        /**
+         * The states, numbered as the table numbers them.
+         */
+        IState[] states(){
+            return this.states.clone();
+        }
+
+        int next(int state, E event){
+            return this.onEvent[state * this.events + event.ordinal()];
+        }
+
+        /**
+         * Builds a TransitionTable. The first state added is the one machines start in.
+         */
+        static final class Builder<E extends Enum<E>> {
+            private final int events;
+            private final List<IState> states = new ArrayList<IState>();
+            private final List<int[]> transitions = new ArrayList<int[]>();
+            private final List<long[]> timeouts = new ArrayList<long[]>();
+
+            private Builder(Class<E> eventType){
+                this.events = eventType.getEnumConstants().length;
+            }
+
+            Builder<E> on(IState from, E event, IState to){
+                this.transitions.add(new int[]{this.id(from), event.ordinal(), this.id(to)});
+                return this;
+            }
+
+            Builder<E> after(IState from, long delay, TimeUnit unit, IState to){
+                this.timeouts.add(new long[]{this.id(from), unit.toNanos(delay), this.id(to)});
+                return this;
+            }
+
+            TransitionTable<E> build(){
+                int count = this.states.size();
+                if(count == 0){
+                    throw new IllegalStateException("A TransitionTable needs at least one state.");
+                }
+                int[] onEvent = new int[count * this.events];
+                Arrays.fill(onEvent, NONE);
+                for(int[] transition : this.transitions){
+                    onEvent[transition[0] * this.events + transition[1]] = transition[2];
+                }
+                long[] timeoutNanos = new long[count];
+                int[] onTimeout = new int[count];
+                Arrays.fill(onTimeout, NONE);
+                for(long[] timeout : this.timeouts){
+                    timeoutNanos[(int) timeout[0]] = timeout[1];
+                    onTimeout[(int) timeout[0]] = (int) timeout[2];
+                }
+                return new TransitionTable<E>(this.states.toArray(new IState[count]), this.events,
+                        onEvent, timeoutNanos, onTimeout);
+            }
+
+            private int id(IState state){
+                int id = this.states.indexOf(state);
+                if(id < 0){
+                    id = this.states.size();
+                    this.states.add(state);
+                }
+                return id;
+            }
+        }
+    }
+
+    /**
+     * A Context driven by a TransitionTable, with its timers on a TimingWheel.
+     *
+     * The current state and a generation count are kept together in one AtomicLong, and
+     * every transition is a compare-and-set of the pair. A state timeout remembers the
+     * generation it was set in, so one that goes off after an event has already moved the
+     * machine on simply fails its compare-and-set and does nothing. The pending timeout is
+     * only ever replaced by one from a later generation, so a thread that's slow to set up
+     * its timeout can't knock out a newer one.
+     */
+    static final class StateMachine<E extends Enum<E>> implements TimingWheel.Task {
+
+        private static final long ALERT = -1;
+
+        private final TransitionTable<E> table;
+        private final TimingWheel wheel;
+        private final long alertNanos;
+
+        //The generation in the high 32 bits, the state in the low 32.
+        private final AtomicLong current = new AtomicLong();
+
+        private final AtomicReference<TimingWheel.Timeout> stateTimeout = new AtomicReference<TimingWheel.Timeout>();
+        private volatile TimingWheel.Timeout alertTimeout;
+        private volatile boolean closed;
+
+        //Where to record transitions and alerts, if anywhere.
+        private final StateMetrics metrics;
+        private final AtomicLong enteredAt = new AtomicLong();
+
+        /**
+         * @param alertPeriod how often to call alert() on the current state, or 0 never to
+         */
+        StateMachine(TransitionTable<E> table, TimingWheel wheel, long alertPeriod, TimeUnit unit){
+            this(table, wheel, alertPeriod, unit, null);
+        }
+
+        /**
+         * @param metrics made with {@link TransitionTable#states()}, shared by any number of machines
+         */
+        StateMachine(TransitionTable<E> table, TimingWheel wheel, long alertPeriod, TimeUnit unit, StateMetrics metrics){
+            super();
+            this.table = table;
+            this.wheel = wheel;
+            this.alertNanos = unit.toNanos(alertPeriod);
+            this.metrics = metrics;
+        }
+
+        void init(){
+            this.enteredAt.set(System.nanoTime());
+            if(this.metrics != null){
+                this.metrics.entered(0);
+            }
+            this.entered(0L);
+            if(this.alertNanos > 0){
+                this.alertTimeout = this.wheel.schedule(this, ALERT, 0, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        IState currentState(){
+            return this.table.state(stateOf(this.current.get()));
+        }
+
+        /**
+         * Move on as the table says for this event.
+         *
+         * @return false if the current state has no transition for it
+         */
+        boolean fire(E event){
+            while(true){
+                long now = this.current.get();
+                int next = this.table.next(stateOf(now), event);
+                if(next == TransitionTable.NONE){
+                    return false;
+                }
+                if(this.moveTo(now, next)){
+                    return true;
+                }
+            }
+        }
+
+        void close(){
+            this.closed = true;
+            cancel(this.stateTimeout.get());
+            cancel(this.alertTimeout);
+        }
+
+        @Override
+        public void expired(TimingWheel.Timeout timeout, long tag) {
+            if(this.closed){
+                return;
+            }
+            if(tag == ALERT){
+                //Schedule the next one from this deadline, so the alerts don't drift.
+                this.alertTimeout = this.wheel.scheduleAt(this, ALERT, timeout.deadline() + this.alertNanos);
+                if(this.metrics == null){
+                    this.currentState().alert();
+                } else {
+                    long start = System.nanoTime();
+                    this.currentState().alert();
+                    this.metrics.alerted(System.nanoTime() - start);
+                }
+            } else {
+                int state = stateOf(tag);
+                this.moveTo(tag, this.table.onTimeout[state]);
+            }
+        }
+
+        private boolean moveTo(long from, int state){
+            long to = (((from >>> 32) + 1) << 32) | state;
+            if(! this.current.compareAndSet(from, to)){
+                return false;
+            }
+            if(this.metrics != null){
+                long time = System.nanoTime();
+                this.metrics.left(stateOf(from), time - this.enteredAt.getAndSet(time));
+                this.metrics.entered(state);
+            }
+            this.entered(to);
+            return true;
+        }
+
+        private void entered(long now){
+            long nanos = this.table.timeoutNanos[stateOf(now)];
+            TimingWheel.Timeout timeout = null;
+            //No point setting a timeout for a state that's already been left.
+            if(nanos > 0 && ! this.closed && this.current.get() == now){
+                timeout = this.wheel.schedule(this, now, nanos, TimeUnit.NANOSECONDS);
+            }
+            while(true){
+                TimingWheel.Timeout pending = this.stateTimeout.get();
+                if(pending != null && generationOf(pending.tag()) > generationOf(now)){
+                    //A later transition got here first; its timeout stays.
+                    cancel(timeout);
+                    return;
+                }
+                if(this.stateTimeout.compareAndSet(pending, timeout)){
+                    cancel(pending);
+                    return;
+                }
+            }
+        }
+
+        private static long generationOf(long current){
+            return current >>> 32;
+        }
+
+        private static int stateOf(long current){
+            return (int) current;
+        }
+
+        private static void cancel(TimingWheel.Timeout timeout){
+            if(timeout != null){
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * The alert demo as a table: each state times out into the other after five seconds,
+     * and an alert can be tripped or acknowledged early.
+     */
+    static class AlertMachines {
+
+        enum AlertEvent {TRIP, ACKNOWLEDGE}
+
+        static TransitionTable<AlertEvent> table(IState noAlert, IState redAlert){
+            return TransitionTable.builder(AlertEvent.class)
+                    .after(noAlert, 5, TimeUnit.SECONDS, redAlert)
+                    .after(redAlert, 5, TimeUnit.SECONDS, noAlert)
+                    .on(noAlert, AlertEvent.TRIP, redAlert)
+                    .on(redAlert, AlertEvent.ACKNOWLEDGE, noAlert)
+                    .build();
+        }
+
+        /**
+         * Runs lots of machines on the shared wheel and reports what they did.
+         */
+        public static void main(String[] args) throws InterruptedException {
+            int machines = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+            long seconds = args.length > 1 ? Long.parseLong(args[1]) : 12;
+
+            final LongAdder calm = new LongAdder();
+            final LongAdder panicked = new LongAdder();
+            TransitionTable<AlertEvent> table = table(new IState() {
+                @Override
+                public void alert() {
+                    calm.increment();
+                }
+            }, new IState() {
+                @Override
+                public void alert() {
+                    panicked.increment();
                 }
-            }, 0, 1000);
+            });
+
+            StateMetrics metrics = new StateMetrics(table.states());
+
+            List<StateMachine<AlertEvent>> all = new ArrayList<StateMachine<AlertEvent>>(machines);
+            for(int i=0;i<machines;i++){
+                StateMachine<AlertEvent> machine = new StateMachine<AlertEvent>(table, TimingWheel.SHARED, 1, TimeUnit.SECONDS, metrics);
+                machine.init();
+                all.add(machine);
+            }
+
+            //Trip every tenth machine early.
+            for(int i=0;i<machines;i+=10){
+                all.get(i).fire(AlertEvent.TRIP);
+            }
+
+            Timing.watch(seconds, alerts(String.format("%,d machines", machines), calm, panicked));
+
+            for(StateMachine<AlertEvent> machine : all){
+                machine.close();
+            }
+            System.out.print(metrics.snapshot());
         }
+    }
+
+    /**
+     * Checks that racing transitions never leave a machine without its state timeout.
+     *
+     * Each machine cycles A -> B -> C -> A on an event, and every one of those states
+     * times out into D, which has no timeout. Several threads fire events at every machine
+     * at once, so transitions and the timeouts they set up overlap. Once the timeout has
+     * had time to go off, every machine must be in D -- one still in A, B or C lost its
+     * timeout to a stale transition.
+     *
+     * Usage: TimeoutRaceCheck [machines] [threads] [trials]
+     */
+    static class TimeoutRaceCheck {
+
+        enum Step {NEXT}
+
+        private static final long TIMEOUT_MILLIS = 200;
+
+        public static void main(String[] args) throws InterruptedException {
+            int machines = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+            int trials = args.length > 2 ? Integer.parseInt(args[2]) : 10;
 
+            IState a = new Quiet();
+            IState b = new Quiet();
+            IState c = new Quiet();
+            IState d = new Quiet();
+            TransitionTable<Step> table = TransitionTable.builder(Step.class)
+                    .on(a, Step.NEXT, b)
+                    .on(b, Step.NEXT, c)
+                    .on(c, Step.NEXT, a)
+                    .after(a, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, d)
+                    .after(b, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, d)
+                    .after(c, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, d)
+                    .build();
+
+            int failed = 0;
+            for(int trial=1;trial<=trials;trial++){
+                final List<StateMachine<Step>> all = new ArrayList<StateMachine<Step>>(machines);
+                for(int i=0;i<machines;i++){
+                    StateMachine<Step> machine = new StateMachine<Step>(table, TimingWheel.SHARED, 0, TimeUnit.SECONDS);
+                    machine.init();
+                    all.add(machine);
+                }
+
+                Thread[] firing = new Thread[threads];
+                for(int t=0;t<threads;t++){
+                    firing[t] = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            for(StateMachine<Step> machine : all){
+                                machine.fire(Step.NEXT);
+                            }
+                        }
+                    });
+                    firing[t].start();
+                }
+                for(Thread thread : firing){
+                    thread.join();
+                }
+
+                //Long enough for the last timeout set, plus a few wheel ticks.
+                Thread.sleep(TIMEOUT_MILLIS * 3);
+
+                int stuck = 0;
+                for(StateMachine<Step> machine : all){
+                    if(machine.currentState() != d){
+                        stuck++;
+                    }
+                    machine.close();
+                }
+                System.out.printf("Trial %d: %,d of %,d machines stuck%n", trial, stuck, machines);
+                if(stuck > 0){
+                    failed++;
+                }
+            }
+
+            System.out.println(failed == 0 ? "OK" : "FAILED in " + failed + " of " + trials + " trials");
+            if(failed > 0){
+                System.exit(1);
+            }
+        }
+
+        private static class Quiet implements IState {
+            @Override
+            public void alert() {
+            }
+        }
+    }
+
+    /**
+     * Counts and timings for a state machine, cheap enough to leave on.
+     *
+     * Each state has a LongAdder counting how often it was entered and a histogram of how
+     * long it was stayed in, and there's one histogram of how long alert() calls take.
+     * Recording only bumps counters that were allocated up front, and a snapshot can be
+     * taken at any time while the machines keep running.
+     */
+    static final class StateMetrics {
+
+        private final String[] names;
+        private final LongAdder[] entries;
+        private final Histogram[] timeInState;
+        private final Histogram alerts = new Histogram();
+
+        StateMetrics(IState... states){
+            super();
+            this.names = new String[states.length];
+            this.entries = new LongAdder[states.length];
+            this.timeInState = new Histogram[states.length];
+            for(int i=0;i<states.length;i++){
+                String name = states[i].getClass().getSimpleName();
+                this.names[i] = name.isEmpty() ? "state " + i : name;
+                this.entries[i] = new LongAdder();
+                this.timeInState[i] = new Histogram();
+            }
+        }
+
+        void entered(int state){
+            this.entries[state].increment();
+        }
+
+        void left(int state, long nanosInState){
+            this.timeInState[state].record(nanosInState);
+        }
+
+        void alerted(long nanos){
+            this.alerts.record(nanos);
+        }
+
+        Snapshot snapshot(){
+            long[] entries = new long[this.names.length];
+            Histogram.Snapshot[] timeInState = new Histogram.Snapshot[this.names.length];
+            for(int i=0;i<this.names.length;i++){
+                entries[i] = this.entries[i].sum();
+                timeInState[i] = this.timeInState[i].snapshot();
+            }
+            return new Snapshot(this.names, entries, timeInState, this.alerts.snapshot());
+        }
+
+        /**
+         * The metrics at one moment. Each counter is read on its own, so while machines are
+         * running the numbers can be a transition or two apart from each other.
+         */
+        static final class Snapshot {
+            private final String[] names;
+            private final long[] entries;
+            private final Histogram.Snapshot[] timeInState;
+            private final Histogram.Snapshot alerts;
+
+            private Snapshot(String[] names, long[] entries, Histogram.Snapshot[] timeInState, Histogram.Snapshot alerts){
+                this.names = names;
+                this.entries = entries;
+                this.timeInState = timeInState;
+                this.alerts = alerts;
+            }
+
+            long entries(int state){
+                return this.entries[state];
+            }
+
+            Histogram.Snapshot timeInState(int state){
+                return this.timeInState[state];
+            }
+
+            Histogram.Snapshot alerts(){
+                return this.alerts;
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder();
+                for(int i=0;i<this.names.length;i++){
+                    sb.append(String.format("%-10s entered %,d times, time in state %s%n",
+                            this.names[i], this.entries[i], this.timeInState[i]));
+                }
+                sb.append(String.format("%-10s %s%n", "alert()", this.alerts));
+                return sb.toString();
+            }
+        }
+    }
+
+    /**
+     * A histogram of nanosecond timings in a fixed number of buckets.
+     *
+     * As in HdrHistogram, each power of two is split into 16 linear buckets, so any value
+     * is placed to within about 6% in 960 counters, whatever the range.
+     */
+    static final class Histogram {
+
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos){
+            long value = Math.max(0, nanos);
+            this.counts.incrementAndGet(index(value));
+            this.total.add(value);
+            this.max.accumulate(value);
+        }
+
+        Snapshot snapshot(){
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for(int i=0;i<BUCKETS;i++){
+                counts[i] = this.counts.get(i);
+                count += counts[i];
+            }
+            return new Snapshot(counts, count, this.total.sum(), this.max.get());
+        }
+
+        private static int index(long value){
+            if(value < SUB_BUCKETS){
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long lowestOf(int index){
+            if(index < SUB_BUCKETS){
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BITS);
+        }
+
+        static final class Snapshot {
+            private final long[] counts;
+            private final long count;
+            private final long total;
+            private final long max;
+
+            private Snapshot(long[] counts, long count, long total, long max){
+                this.counts = counts;
+                this.count = count;
+                this.total = total;
+                this.max = max;
+            }
+
+            long count(){
+                return this.count;
+            }
+
+            long max(){
+                return this.max;
+            }
+
+            double mean(){
+                return this.count == 0 ? 0 : (double) this.total / this.count;
+            }
+
+            /**
+             * The highest value in the bucket holding the given fraction of values.
+             */
+            long percentile(double fraction){
+                long rank = Math.max(1, (long) Math.ceil(fraction * this.count));
+                long seen = 0;
+                for(int i=0;i<this.counts.length;i++){
+                    seen += this.counts[i];
+                    if(seen >= rank){
+                        long highest = i + 1 < BUCKETS ? lowestOf(i + 1) - 1 : Long.MAX_VALUE;
+                        return Math.min(highest, this.max);
+                    }
+                }
+                return 0;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("count %,d, mean %s, p50 %s, p99 %s, p999 %s, max %s",
+                        this.count, format((long) this.mean()), format(this.percentile(0.5)),
+                        format(this.percentile(0.99)), format(this.percentile(0.999)), format(this.max));
+            }
+
+            private static String format(long nanos){
+                if(nanos >= 1_000_000_000L){
+                    return String.format("%.2fs", nanos / 1e9);
+                } else if(nanos >= 1_000_000L){
+                    return String.format("%.2fms", nanos / 1e6);
+                }
+                return String.format("%.2fus", nanos / 1e3);
+            }
+        }
     }
 
     /**
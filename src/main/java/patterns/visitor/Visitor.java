@@ -1,6 +1,22 @@
 package patterns.visitor;
 
+import patterns.benchmark.Timing;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Visitor Pattern Demo.
@@ -26,6 +42,32 @@ public class Visitor {
         void visit(Room room);
     }
 
+    /**
+     * A Visitor whose visit(Room) is safe to call from many threads at once, so one
+     * instance can be shared by a parallel {@link House#accept(IVisitor, ForkJoinPool)}.
+     * visit(House) is still only called once, after every Room is done.
+     */
+    interface ConcurrentVisitor extends IVisitor {
+    }
+
+    /**
+     * A Visitor that keeps results, and so can't be shared between threads, but can be
+     * split into copies that are each given some of the Rooms and merged back at the end.
+     *
+     * visit(House) is called on the original once every copy has been joined back into it.
+     */
+    interface ParallelVisitor<V extends ParallelVisitor<V>> extends IVisitor {
+        /**
+         * A new, empty copy to visit some of the Rooms with.
+         */
+        V fork();
+
+        /**
+         * Add in the results of a copy, which visited Rooms after any this one has.
+         */
+        void join(V other);
+    }
+
     /**
      * An Interface for anything able to accept a Visitor.
      */
@@ -37,7 +79,7 @@ public class Visitor {
      * A simple Visitor to lock the doors and turn off the lights
      * before heading out to work for the day.
      */
-    static class LeaveForWorkVisitor implements IVisitor {
+    static class LeaveForWorkVisitor implements ConcurrentVisitor {
         @Override
         public void visit(House house) {
             house.lockDoors();
@@ -49,12 +91,71 @@ public class Visitor {
         }
     }
 
+    /**
+     * Collects the names of the Rooms it visits, then reports on the House.
+     */
+    static class InspectionVisitor implements ParallelVisitor<InspectionVisitor> {
+
+        private final List<String> inspected = new ArrayList<String>();
+
+        @Override
+        public void visit(House house) {
+            System.out.println("Inspected " + this.inspected.size() + " rooms.");
+        }
+
+        @Override
+        public void visit(Room room) {
+            this.inspected.add(room.getName());
+        }
+
+        @Override
+        public InspectionVisitor fork() {
+            return new InspectionVisitor();
+        }
+
+        @Override
+        public void join(InspectionVisitor other) {
+            this.inspected.addAll(other.inspected);
+        }
+
+        List<String> getInspected() {
+            return this.inspected;
+        }
+    }
+
     static class House implements Visitable {
-        private Iterable<Room> rooms;
 
+        //Split the Rooms no finer than this for a parallel visit.
+        private static final int MIN_ROOMS_PER_TASK = 64;
+
+        private List<Room> rooms;
+
+        private static final DirtyRooms[] UNTRACKED = new DirtyRooms[0];
+
+        //One per IncrementalVisit, copied on write; empty until there is one.
+        private volatile DirtyRooms[] tracking = UNTRACKED;
+
+        /**
+         * A Room belongs to one House at a time; its changes are tracked by the last House
+         * it was given to.
+         */
         House(Iterable<Room> rooms){
             super();
-            this.rooms = rooms;
+            this.rooms = new ArrayList<Room>();
+            for(Room room : rooms){
+                this.rooms.add(room);
+            }
+            for(int i=0;i<this.rooms.size();i++){
+                this.rooms.get(i).attach(this, i);
+            }
+        }
+
+        /**
+         * A House whose rooms are kept some other way, by a subclass.
+         */
+        House(){
+            super();
+            this.rooms = Collections.emptyList();
         }
 
         @Override
@@ -65,27 +166,873 @@ public class Visitor {
             visitor.visit(this);
         }
 
+        /**
+         * Visit the Rooms in parallel on the pool, then the House.
+         *
+         * A {@link ParallelVisitor} gets a copy for each batch of Rooms, and the copies are
+         * joined back in Room order. A {@link ConcurrentVisitor} is shared by all of them.
+         * Any other Visitor can't be trusted on more than one thread, so it's given the
+         * Rooms one at a time as usual.
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public void accept(IVisitor visitor, ForkJoinPool pool) {
+            if(! (visitor instanceof ParallelVisitor || visitor instanceof ConcurrentVisitor)){
+                this.accept(visitor);
+                return;
+            }
+            RoomRange rooms = this.roomRange();
+            //A few batches per thread, so threads that finish early can steal.
+            int batchSize = Math.max(MIN_ROOMS_PER_TASK, rooms.size() / (pool.getParallelism() * 4));
+            if(visitor instanceof ParallelVisitor){
+                forkAndJoin(rooms, batchSize, (ParallelVisitor) visitor, pool);
+            } else {
+                pool.invoke(new SharedRooms(rooms, 0, rooms.size(), batchSize, visitor));
+            }
+            visitor.visit(this);
+        }
+
+        private static <V extends ParallelVisitor<V>> void forkAndJoin(RoomRange rooms, int batchSize, V visitor, ForkJoinPool pool){
+            visitor.join(pool.invoke(new ForkedRooms<V>(rooms, 0, rooms.size(), batchSize, visitor)));
+        }
+
+        /**
+         * Visit the Rooms one at a time, but after the first pass only the ones that have
+         * changed since the pass before.
+         */
+        IncrementalVisit incrementally(IVisitor visitor){
+            return new IncrementalVisit(this, visitor);
+        }
+
+        /**
+         * Note that a Room has changed, for any incremental visits.
+         */
+        void changed(int room){
+            for(DirtyRooms dirty : this.tracking){
+                dirty.mark(room);
+            }
+        }
+
+        synchronized DirtyRooms track(){
+            DirtyRooms dirty = new DirtyRooms(this.roomRange().size());
+            DirtyRooms[] updated = Arrays.copyOf(this.tracking, this.tracking.length + 1);
+            updated[updated.length - 1] = dirty;
+            this.tracking = updated;
+            return dirty;
+        }
+
+        synchronized void untrack(DirtyRooms dirty){
+            DirtyRooms[] current = this.tracking;
+            for(int i=0;i<current.length;i++){
+                if(current[i] == dirty){
+                    DirtyRooms[] updated = new DirtyRooms[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    this.tracking = updated;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The Rooms, by index, for a visit to split up or pick from.
+         */
+        RoomRange roomRange(){
+            final List<Room> list = this.rooms;
+            return new RoomRange() {
+                @Override
+                public int size() {
+                    return list.size();
+                }
+
+                @Override
+                public void accept(int from, int to, IVisitor visitor) {
+                    for(int i=from;i<to;i++){
+                        list.get(i).accept(visitor);
+                    }
+                }
+
+                @Override
+                public void acceptEach(int[] rooms, IVisitor visitor) {
+                    for(int room : rooms){
+                        list.get(room).accept(visitor);
+                    }
+                }
+            };
+        }
+
         void lockDoors(){
             System.out.println("Locking the front door.");
         }
     }
 
+    /**
+     * Rooms numbered from 0, which can be visited a range at a time.
+     */
+    interface RoomRange {
+        int size();
+        void accept(int from, int to, IVisitor visitor);
+        void acceptEach(int[] rooms, IVisitor visitor);
+    }
+
+    /**
+     * Visits a range of Rooms with one shared ConcurrentVisitor.
+     */
+    private static final class SharedRooms extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RoomRange rooms;
+        private final int from;
+        private final int to;
+        private final int batchSize;
+        private final IVisitor visitor;
+
+        SharedRooms(RoomRange rooms, int from, int to, int batchSize, IVisitor visitor){
+            this.rooms = rooms;
+            this.from = from;
+            this.to = to;
+            this.batchSize = batchSize;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if(this.to - this.from <= this.batchSize){
+                this.rooms.accept(this.from, this.to, this.visitor);
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new SharedRooms(this.rooms, this.from, middle, this.batchSize, this.visitor),
+                    new SharedRooms(this.rooms, middle, this.to, this.batchSize, this.visitor));
+        }
+    }
+
+    /**
+     * Visits a range of Rooms with forks of a ParallelVisitor, returning them joined in order.
+     */
+    private static final class ForkedRooms<V extends ParallelVisitor<V>> extends RecursiveTask<V> {
+        private static final long serialVersionUID = 1L;
+
+        private final RoomRange rooms;
+        private final int from;
+        private final int to;
+        private final int batchSize;
+        private final V root;
+
+        ForkedRooms(RoomRange rooms, int from, int to, int batchSize, V root){
+            this.rooms = rooms;
+            this.from = from;
+            this.to = to;
+            this.batchSize = batchSize;
+            this.root = root;
+        }
+
+        @Override
+        protected V compute() {
+            if(this.to - this.from <= this.batchSize){
+                V visitor = this.root.fork();
+                this.rooms.accept(this.from, this.to, visitor);
+                return visitor;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            ForkedRooms<V> left = new ForkedRooms<V>(this.rooms, this.from, middle, this.batchSize, this.root);
+            ForkedRooms<V> right = new ForkedRooms<V>(this.rooms, middle, this.to, this.batchSize, this.root);
+            left.fork();
+            V rightVisitor = right.compute();
+            V leftVisitor = left.join();
+            leftVisitor.join(rightVisitor);
+            return leftVisitor;
+        }
+    }
+
+    /**
+     * Compares visiting a large House one Room at a time and in parallel.
+     */
+    static class ParallelVisitDemo {
+
+        public static void main(String[] args) throws Exception {
+            final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+            List<Room> rooms = new ArrayList<Room>(count);
+            for(int i=0;i<count;i++){
+                rooms.add(new Room("Room " + i));
+            }
+            final House house = new House(rooms);
+
+            Timing.rounds(3, new Timing.Round() {
+                @Override
+                public void run(int round) throws Exception {
+                    final InspectionVisitor sequential = new InspectionVisitor();
+                    Timing.print("sequential", Timing.time(new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            house.accept(sequential);
+                            return count;
+                        }
+                    }).elapsed());
+
+                    final InspectionVisitor parallel = new InspectionVisitor();
+                    Timing.Result result = Timing.time(new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            house.accept(parallel, ForkJoinPool.commonPool());
+                            return count;
+                        }
+                    });
+                    //The forks are joined in order, so the parallel visit must see the Rooms in the same order.
+                    Timing.print("parallel", result.elapsed() + ", same order: "
+                            + sequential.getInspected().equals(parallel.getInspected()));
+                }
+            });
+        }
+    }
+
+    /**
+     * A House kept as columns rather than Room objects, for buildings with millions of Rooms.
+     *
+     * Each Room is an index: its name is an int id into a table of interned names, and its
+     * light is a bit in an array of words. Visitors are handed one {@link RoomCursor} that's
+     * moved from Room to Room, so a visit walks flat arrays and allocates nothing per Room.
+     * The catch is that a Visitor mustn't hold on to a Room after visit(Room) returns.
+     *
+     * The light words are set with atomic bitwise ops, since a parallel visit has Rooms
+     * that share a word being switched on different threads at once. A BitSet can't be
+     * written from more than one thread, even to different words.
+     */
+    static class ColumnarHouse extends House {
+
+        private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final String[] names;
+        private final int[] nameIds;
+        private final int size;
+        private final long[] lights;
+
+        private ColumnarHouse(String[] names, int[] nameIds, int size, long[] lights){
+            super();
+            this.names = names;
+            this.nameIds = nameIds;
+            this.size = size;
+            this.lights = lights;
+        }
+
+        static Builder builder(){
+            return new Builder();
+        }
+
+        @Override
+        public void accept(IVisitor visitor) {
+            new RoomCursor(this).accept(0, this.size, visitor);
+            visitor.visit(this);
+        }
+
+        @Override
+        RoomRange roomRange() {
+            return new RoomRange() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public void accept(int from, int to, IVisitor visitor) {
+                    //One cursor per batch, so threads never share one.
+                    new RoomCursor(ColumnarHouse.this).accept(from, to, visitor);
+                }
+
+                @Override
+                public void acceptEach(int[] rooms, IVisitor visitor) {
+                    new RoomCursor(ColumnarHouse.this).acceptEach(rooms, visitor);
+                }
+            };
+        }
+
+        int size(){
+            return this.size;
+        }
+
+        int lightsOn(){
+            int on = 0;
+            for(int i=0;i<this.lights.length;i++){
+                on += Long.bitCount((long) WORDS.getAcquire(this.lights, i));
+            }
+            return on;
+        }
+
+        boolean isLightOn(int room){
+            return ((long) WORDS.getAcquire(this.lights, room >>> 6) & (1L << room)) != 0;
+        }
+
+        /**
+         * @return whether the light was switched, rather than already that way
+         */
+        boolean setLight(int room, boolean on){
+            if(this.isLightOn(room) == on){
+                return false;
+            }
+            long bit = 1L << room;
+            long before = on ? (long) WORDS.getAndBitwiseOr(this.lights, room >>> 6, bit)
+                    : (long) WORDS.getAndBitwiseAnd(this.lights, room >>> 6, ~bit);
+            return ((before & bit) != 0) != on;
+        }
+
+        /**
+         * Adds Rooms one at a time, interning their names as it goes.
+         */
+        static final class Builder {
+            private final Map<String, Integer> ids = new HashMap<String, Integer>();
+            private final List<String> names = new ArrayList<String>();
+            private int[] nameIds = new int[16];
+            private int size;
+            private final BitSet lights = new BitSet();
+
+            Builder addRoom(String name, boolean lightOn){
+                Integer id = this.ids.get(name);
+                if(id == null){
+                    id = this.names.size();
+                    this.ids.put(name, id);
+                    this.names.add(name);
+                }
+                if(this.size == this.nameIds.length){
+                    this.nameIds = Arrays.copyOf(this.nameIds, this.size * 2);
+                }
+                this.lights.set(this.size, lightOn);
+                this.nameIds[this.size++] = id;
+                return this;
+            }
+
+            ColumnarHouse build(){
+                return new ColumnarHouse(this.names.toArray(new String[0]),
+                        Arrays.copyOf(this.nameIds, this.size), this.size,
+                        Arrays.copyOf(this.lights.toLongArray(), (this.size + 63) >>> 6));
+            }
+        }
+    }
+
+    /**
+     * A Room that's a view of one row of a ColumnarHouse, moved along from Room to Room.
+     */
+    static final class RoomCursor extends Room {
+
+        private final ColumnarHouse house;
+        private int index;
+
+        RoomCursor(ColumnarHouse house){
+            super(null);
+            this.house = house;
+        }
+
+        void accept(int from, int to, IVisitor visitor){
+            for(int i=from;i<to;i++){
+                this.index = i;
+                visitor.visit(this);
+            }
+        }
+
+        void acceptEach(int[] rooms, IVisitor visitor){
+            for(int room : rooms){
+                this.index = room;
+                visitor.visit(this);
+            }
+        }
+
+        @Override
+        String getName() {
+            return this.house.names[this.house.nameIds[this.index]];
+        }
+
+        @Override
+        boolean isLightOn() {
+            return this.house.isLightOn(this.index);
+        }
+
+        @Override
+        void setLight(boolean on) {
+            if(this.house.setLight(this.index, on)){
+                this.house.changed(this.index);
+            }
+        }
+    }
+
+    /**
+     * Builds a House of millions of Rooms as columns and times visiting it.
+     */
+    static class ColumnarHouseDemo {
+
+        public static void main(String[] args) throws Exception {
+            int count = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+            String[] kinds = {"Bedroom", "Kitchen", "Bathroom", "Office", "Hallway", "Closet"};
+
+            ColumnarHouse.Builder builder = ColumnarHouse.builder();
+            for(int i=0;i<count;i++){
+                builder.addRoom(kinds[i % kinds.length], true);
+            }
+            final ColumnarHouse house = builder.build();
+
+            final long[] letters = new long[1];
+            final IVisitor lightsOff = new IVisitor() {
+                @Override
+                public void visit(House house) {
+                }
+
+                @Override
+                public void visit(Room room) {
+                    letters[0] += room.getName().length();
+                    room.setLight(false);
+                }
+            };
+
+            Timing.rounds(3, new Timing.Round() {
+                @Override
+                public void run(int round) throws Exception {
+                    Timing.Result result = Timing.time(new Timing.Measured() {
+                        @Override
+                        public long run() {
+                            house.accept(lightsOff);
+                            return house.size();
+                        }
+                    });
+                    Timing.print(String.format("%,d rooms", result.count()),
+                            String.format("%s, %,d lights still on", result.elapsed(), house.lightsOn()));
+                }
+            });
+        }
+    }
+
+    /**
+     * Checks that no light switch is lost when threads switch lights that share a word.
+     *
+     * Each trial builds a ColumnarHouse with random lights and flips every light with a
+     * ConcurrentVisitor on a pool, so the Rooms either side of a batch boundary are switched
+     * from different threads. Every light must end up flipped. Then the threads are
+     * started together and each switches every n-th Room, all on and then all off a few
+     * times over, so they keep hitting the same words at once. Each time every light must
+     * end up the same way, and every switch must have been reported as one.
+     *
+     * Usage: ColumnarLightsCheck [trials] [threads]
+     */
+    static class ColumnarLightsCheck {
+
+        private static final int SWITCHES_PER_TRIAL = 20;
+
+        public static void main(String[] args) throws InterruptedException {
+            int trials = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            Random random = new Random(42);
+            int failed = 0;
+            for(int trial=1;trial<=trials;trial++){
+                int count = 50_000 + random.nextInt(200_000);
+                boolean[] before = new boolean[count];
+                ColumnarHouse.Builder builder = ColumnarHouse.builder();
+                for(int i=0;i<count;i++){
+                    before[i] = random.nextBoolean();
+                    builder.addRoom("Room", before[i]);
+                }
+                ColumnarHouse house = builder.build();
+
+                house.accept(new ConcurrentVisitor() {
+                    @Override
+                    public void visit(House house) {
+                    }
+
+                    @Override
+                    public void visit(Room room) {
+                        room.setLight(! room.isLightOn());
+                    }
+                }, pool);
+                int notFlipped = 0;
+                for(int i=0;i<count;i++){
+                    if(house.isLightOn(i) == before[i]){
+                        notFlipped++;
+                    }
+                }
+
+                int wrongSwitches = 0;
+                for(int i=0;i<SWITCHES_PER_TRIAL;i++){
+                    boolean on = (i % 2 == 0);
+                    int expected = on ? count - house.lightsOn() : house.lightsOn();
+                    long switched = switchAll(house, on, threads);
+                    if(switched != expected || house.lightsOn() != (on ? count : 0)){
+                        wrongSwitches++;
+                    }
+                }
+
+                if(notFlipped > 0 || wrongSwitches > 0){
+                    failed++;
+                    System.out.printf("Trial %d: %,d rooms, %,d not flipped, %d of %d switches wrong%n",
+                            trial, count, notFlipped, wrongSwitches, SWITCHES_PER_TRIAL);
+                }
+            }
+            pool.shutdown();
+
+            System.out.println(failed == 0 ? "OK, " + trials + " trials" : "FAILED in " + failed + " of " + trials + " trials");
+            if(failed > 0){
+                System.exit(1);
+            }
+        }
+
+        /**
+         * Start the threads together, each switching every n-th light.
+         *
+         * @return how many lights were reported as switched
+         */
+        private static long switchAll(final ColumnarHouse house, final boolean on, final int threads) throws InterruptedException {
+            final CountDownLatch start = new CountDownLatch(1);
+            final LongAdder switched = new LongAdder();
+            Thread[] switching = new Thread[threads];
+            for(int t=0;t<threads;t++){
+                final int first = t;
+                switching[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        int count = 0;
+                        for(int room=first;room<house.size();room+=threads){
+                            if(house.setLight(room, on)){
+                                count++;
+                            }
+                        }
+                        switched.add(count);
+                    }
+                });
+                switching[t].start();
+            }
+            start.countDown();
+            for(Thread thread : switching){
+                thread.join();
+            }
+            return switched.sum();
+        }
+    }
+
+    /**
+     * Which Rooms of a House have changed since an IncrementalVisit's last pass, one bit
+     * per Room, with a summary bit per word of those so a pass over a quiet House doesn't
+     * have to read them all.
+     *
+     * Bits are set and taken with atomic ops on words, so Rooms can be marked from any
+     * number of threads with no lock. Changes made by the thread running a pass, while
+     * it's running it, aren't marked: those are the Visitor's own.
+     */
+    static final class DirtyRooms {
+
+        private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final long[] rooms;
+        private final long[] summary;
+
+        private volatile Thread passing;
+
+        DirtyRooms(int rooms){
+            super();
+            this.rooms = new long[(rooms + 63) >>> 6];
+            this.summary = new long[(this.rooms.length + 63) >>> 6];
+        }
+
+        void mark(int room){
+            if(this.passing == Thread.currentThread()){
+                return;
+            }
+            int word = room >>> 6;
+            //The Room's bit first, then the summary, so a pass that clears the summary
+            //bit always sees the Room's bit or leaves it for next time.
+            setBit(this.rooms, word, 1L << room);
+            setBit(this.summary, word >>> 6, 1L << word);
+        }
+
+        /**
+         * Take the marked Rooms, clearing them.
+         */
+        int[] take(){
+            int[] taken = new int[16];
+            int count = 0;
+            for(int s=0;s<this.summary.length;s++){
+                if((long) WORDS.getVolatile(this.summary, s) == 0){
+                    continue;
+                }
+                long words = (long) WORDS.getAndSet(this.summary, s, 0L);
+                while(words != 0){
+                    int word = (s << 6) + Long.numberOfTrailingZeros(words);
+                    words &= words - 1;
+                    long bits = (long) WORDS.getAndSet(this.rooms, word, 0L);
+                    while(bits != 0){
+                        if(count == taken.length){
+                            taken = Arrays.copyOf(taken, count * 2);
+                        }
+                        taken[count++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                    }
+                }
+            }
+            return Arrays.copyOf(taken, count);
+        }
+
+        void passing(Thread thread){
+            this.passing = thread;
+        }
+
+        private static void setBit(long[] words, int word, long bit){
+            //Most changes are to Rooms already marked, which needs no write at all.
+            if(((long) WORDS.getVolatile(words, word) & bit) == 0){
+                WORDS.getAndBitwiseOr(words, word, bit);
+            }
+        }
+    }
+
+    /**
+     * Visits a House pass after pass, each time only giving the Visitor the Rooms that have
+     * changed since its last pass, so a pass over a quiet House costs next to nothing.
+     *
+     * The House only starts tracking changes when one of these is made, and then keeps a
+     * bit per Room for it until it's closed. The first pass visits every Room.
+     * visit(House) is called on every pass. What the Visitor itself changes during a pass
+     * isn't counted as a change for the next one.
+     */
+    static final class IncrementalVisit {
+
+        private final House house;
+        private final IVisitor visitor;
+        private final DirtyRooms dirty;
+        private boolean first = true;
+
+        IncrementalVisit(House house, IVisitor visitor){
+            super();
+            this.house = house;
+            this.visitor = visitor;
+            this.dirty = house.track();
+        }
+
+        /**
+         * @return how many Rooms were visited
+         */
+        int pass(){
+            RoomRange rooms = this.house.roomRange();
+            this.dirty.passing(Thread.currentThread());
+            try {
+                int visited;
+                if(this.first){
+                    this.first = false;
+                    rooms.accept(0, rooms.size(), this.visitor);
+                    visited = rooms.size();
+                } else {
+                    //Anything else that changes from here on, even during this pass, is for the next one.
+                    int[] changed = this.dirty.take();
+                    rooms.acceptEach(changed, this.visitor);
+                    visited = changed.length;
+                }
+                this.visitor.visit(this.house);
+                return visited;
+            } finally {
+                this.dirty.passing(null);
+            }
+        }
+
+        /**
+         * Stop tracking changes for this visit.
+         */
+        void close(){
+            this.house.untrack(this.dirty);
+        }
+    }
+
+    /**
+     * Times incremental passes over a large, mostly quiet House.
+     */
+    static class IncrementalVisitDemo {
+
+        public static void main(String[] args) throws Exception {
+            int count = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+
+            ColumnarHouse.Builder builder = ColumnarHouse.builder();
+            for(int i=0;i<count;i++){
+                builder.addRoom("Room", true);
+            }
+            ColumnarHouse house = builder.build();
+
+            final IncrementalVisit lightsOff = house.incrementally(new IVisitor() {
+                @Override
+                public void visit(House house) {
+                }
+
+                @Override
+                public void visit(Room room) {
+                    room.setLight(false);
+                }
+            });
+
+            Random random = new Random(42);
+            RoomRange rooms = house.roomRange();
+            final IVisitor lightOn = new IVisitor() {
+                @Override
+                public void visit(House house) {
+                }
+
+                @Override
+                public void visit(Room room) {
+                    room.setLight(true);
+                }
+            };
+
+            for(int pass=1;pass<=6;pass++){
+                //Someone switches a few lights on between passes.
+                int switched = pass > 3 ? 100 : 0;
+                for(int i=0;i<switched;i++){
+                    int room = random.nextInt(count);
+                    rooms.accept(room, room + 1, lightOn);
+                }
+
+                Timing.Result result = Timing.time(new Timing.Measured() {
+                    @Override
+                    public long run() {
+                        return lightsOff.pass();
+                    }
+                });
+                Timing.print("pass " + pass, String.format("%s, visited %,d of %,d rooms, %,d lights still on",
+                        result.elapsed(), result.count(), count, house.lightsOn()));
+            }
+        }
+    }
+
+    /**
+     * Checks that no change is lost when Rooms change while an incremental pass is running.
+     *
+     * Each trial has several threads switching random lights on while the main thread runs
+     * pass after pass, switching every light it's given off again. Once the threads are
+     * done, one more pass must leave every light off. A light still on was changed but
+     * never handed to a pass. A pass after that must visit nothing, since nothing changed.
+     *
+     * Usage: IncrementalVisitCheck [trials] [threads]
+     */
+    static class IncrementalVisitCheck {
+
+        private static final int ROOMS = 100_000;
+        private static final int SWITCHES_PER_THREAD = 200_000;
+
+        public static void main(String[] args) throws InterruptedException {
+            int trials = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+            final IVisitor lightOn = new IVisitor() {
+                @Override
+                public void visit(House house) {
+                }
+
+                @Override
+                public void visit(Room room) {
+                    room.setLight(true);
+                }
+            };
+
+            int failed = 0;
+            for(int trial=1;trial<=trials;trial++){
+                ColumnarHouse.Builder builder = ColumnarHouse.builder();
+                for(int i=0;i<ROOMS;i++){
+                    builder.addRoom("Room", false);
+                }
+                ColumnarHouse house = builder.build();
+                IncrementalVisit lightsOff = house.incrementally(new IVisitor() {
+                    @Override
+                    public void visit(House house) {
+                    }
+
+                    @Override
+                    public void visit(Room room) {
+                        room.setLight(false);
+                    }
+                });
+                lightsOff.pass();
+
+                final RoomRange rooms = house.roomRange();
+                Thread[] switching = new Thread[threads];
+                for(int t=0;t<threads;t++){
+                    final Random random = new Random(trial * 31L + t);
+                    switching[t] = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            for(int i=0;i<SWITCHES_PER_THREAD;i++){
+                                int room = random.nextInt(ROOMS);
+                                rooms.accept(room, room + 1, lightOn);
+                            }
+                        }
+                    });
+                    switching[t].start();
+                }
+
+                int passes = 0;
+                boolean switchingDone = false;
+                while(! switchingDone){
+                    switchingDone = true;
+                    for(Thread thread : switching){
+                        switchingDone &= ! thread.isAlive();
+                    }
+                    lightsOff.pass();
+                    passes++;
+                }
+                //Every thread has finished, so this pass must catch whatever the last one missed.
+                lightsOff.pass();
+                int stillOn = house.lightsOn();
+                int visitedAfter = lightsOff.pass();
+                lightsOff.close();
+
+                if(stillOn > 0 || visitedAfter > 0){
+                    failed++;
+                    System.out.printf("Trial %d: after %,d passes, %,d lights still on, %,d rooms visited with nothing changed%n",
+                            trial, passes, stillOn, visitedAfter);
+                }
+            }
+
+            System.out.println(failed == 0 ? "OK, " + trials + " trials" : "FAILED in " + failed + " of " + trials + " trials");
+            if(failed > 0){
+                System.exit(1);
+            }
+        }
+    }
+
     static class Room implements Visitable {
 
         private String name;
+        private volatile boolean light = true;
+
+        //Where to report changes, once the Room is in a House.
+        private House house;
+        private int index;
 
         Room(String name){
             super();
             this.name = name;
         }
 
+        void attach(House house, int index){
+            this.house = house;
+            this.index = index;
+        }
+
         @Override
         public void accept(IVisitor visitor) {
             visitor.visit(this);
         }
 
+        String getName() {
+            return this.name;
+        }
+
+        boolean isLightOn(){
+            return this.light;
+        }
+
         void setLight(boolean on){
+            if(this.light == on){
+                return;
+            }
+            this.light = on;
             System.out.println("Turning Room " + this.name + " light " + ((on) ? "on" : "off") + ".");
+            if(this.house != null){
+                this.house.changed(this.index);
+            }
         }
     }
 }